@@ -76,10 +76,10 @@ public static void main(String[] args) throws FileNotFoundException, IOException
 		if (!helperDir.exists())
 			helperDir.mkdirs();
 		File helper = new File(target, "../src/other/c/avlog.c");
-		exec(ffmpeg, "gcc", "-fPIC", "-shared", "-I.", "-Wl,-rpath,$ORIGIN/", "-o", "libavlog/libavlog.so.0", helper.getAbsolutePath());
+		exec(ffmpeg, "gcc", "-fPIC", "-shared", "-I.", "-Wl,-rpath,$ORIGIN/", "-o", "libavlog/libavlog.so.0", helper.getAbsolutePath(), "-lpthread");
 		PrintStream out = new PrintStream(new FileOutputStream(new File(helperDir, "avlog.h")));
 		out.println("#define LIBAVLOG_VERSION_MAJOR 0");
-		out.println("void avSetLogCallback(void (*callback)(const char *line));");
+		out.println("void avSetLogCallback(void (*callback)(int level, const char *line));");
 
 		// Generate the JNA wrapper classes
 		File generatedSources = new File(target, "classes");
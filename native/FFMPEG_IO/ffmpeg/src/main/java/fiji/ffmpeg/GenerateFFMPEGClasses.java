@@ -9,6 +9,9 @@
 import java.io.FileWriter;
 import java.io.IOException;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Stack;
 import java.util.TreeMap;
 
@@ -271,6 +274,60 @@ private static String stripPrefix(final String string, final String prefix) {
 	private String currentLib;
 	private TreeMap<String, String> name2lib = new TreeMap<String, String>();
 	protected TreeMap<String, String> majorVersions = new TreeMap<String, String>();
+	// functions filling a buffer get an overload taking a Pointer, so that they can write to native memory directly
+	protected Set<String> pointerBufferFunctions = new HashSet<String>(Arrays.asList(new String[] {
+		"avcodec_encode_video"
+	}));
+	/*
+	 * functions called for every frame (see NATIVE_CALLS) also get a
+	 * direct-mapped binding, in the nested class Direct
+	 */
+	protected Set<String> directFunctions = new HashSet<String>();
+	{
+		for (String[] call : NATIVE_CALLS)
+			directFunctions.add(call[1]);
+	}
+	private StringBuffer directDeclarations;
+	/*
+	 * structures passed for every frame are not synchronized automatically, but
+	 * get read_<field>() and write_<field>() accessors for their scalar fields;
+	 * the list can be overridden by the system property ffmpeg.manualSync
+	 */
+	protected Set<String> manualSyncStructs = new HashSet<String>(Arrays.asList(
+		System.getProperty("ffmpeg.manualSync", "AVPacket,AVFrame,AVCodecContext,AVFormatContext")
+			.split("\\s*,\\s*")));
+	protected static Set<String> scalarTypes = new HashSet<String>(Arrays.asList(new String[] {
+		"byte", "short", "int", "long", "float", "double", "NativeLong", "Pointer"
+	}));
+	/*
+	 * with the system property ffmpeg.panama set to a directory, bindings for the
+	 * Foreign Function & Memory API (Java 22) are generated there, too: downcall
+	 * handles for the direct functions, and memory layouts for the structures.
+	 * They cannot be compiled at the source level of the JNA classes, and are
+	 * therefore kept apart.
+	 */
+	protected File panamaDir = System.getProperty("ffmpeg.panama") == null ?
+		null : new File(System.getProperty("ffmpeg.panama"));
+	protected TreeMap<String, String> intConstants = new TreeMap<String, String>();
+	protected Set<String> panamaStructs = new HashSet<String>();
+	protected Set<String> panamaFunctions = new HashSet<String>();
+	// the functions that got a downcall handle
+	protected Set<String> panamaBound = new HashSet<String>();
+	/*
+	 * the functions called for every frame, i.e. the methods of
+	 * fiji.ffmpeg.NativeCalls (return type, name, parameters); the static
+	 * wrappers in fiji.ffmpeg.FFMPEG call their Direct or Panama bindings
+	 */
+	protected final static String[][] NATIVE_CALLS = {
+		{ "int", "av_read_frame", "long s, long pkt" },
+		{ "int", "av_interleaved_write_frame", "long s, long pkt" },
+		{ "void", "av_free_packet", "long pkt" },
+		{ "int", "avcodec_decode_video2", "long avctx, long picture, long got_picture_ptr, long avpkt" },
+		{ "int", "avcodec_encode_video", "long avctx, long buf, int buf_size, long pict" },
+		{ "int", "sws_scale", "long context, long srcSlice, long srcStride, int srcSliceY, int srcSliceH, long dst, long dstStride" }
+	};
+	private StringBuffer panamaHandles, panamaMethods, panamaLayouts;
+	private StringBuffer panamaCalls = new StringBuffer(), panamaBindings = new StringBuffer();
 
 	private String addLibPrefix(final String name) {
 		String lib = name2lib.get(name);
@@ -486,8 +543,13 @@ private String handleStruct(final String text, final int level, final LineIterat
 		if (matcher == null)
 			return null;
 		String name = matcher.group(1);
+		boolean manualSync = manualSyncStructs.contains(name);
 		StringBuffer constants = new StringBuffer();
 		StringBuffer buf = new StringBuffer();
+		StringBuffer accessors = new StringBuffer();
+		// the memory layout for the Panama bindings, unless a member cannot be laid out
+		StringBuffer layout = new StringBuffer();
+		String layoutProblem = null;
 		flushBitField(buf);
 		while (iter.next()) {
 			line = iter.getLine().trim();
@@ -521,6 +583,7 @@ else if (matcher.group(2) != null)
 			if (inner != null) {
 				flushBitField(buf);
 				buf.append(inner);
+				layoutProblem = "nested structure";
 				continue;
 			}
 
@@ -540,6 +603,7 @@ else if (matcher.group(2) != null)
 					.append(" callback(");
 				buf.append(functionParameters(matcher.group(3)));
 				buf.append(");\n}\npublic ").append(callback).append(" ").append(name2).append(";\n");
+				addLayout(layout, "ValueLayout.ADDRESS", name2);
 				continue;
 			}
 
@@ -550,18 +614,23 @@ else if (matcher.group(2) != null)
 				buf.append("public Pointer").append(suffix.replaceAll("[^\\[\\]]", ""))
 					.append(" ").append(name2).append(" = new Pointer").append(suffix)
 					.append("; // ").append(line).append("\n");
+				if (!addLayout(layout, panamaArray("ValueLayout.ADDRESS", suffix), name2))
+					layoutProblem = "array size " + suffix;
 				continue;
 			}
 
 			if ((matcher = match(bitFieldPattern, line)) != null) {
 				stageBitFieldEntry(matcher.group(1), Integer.parseInt(matcher.group(2)));
+				layoutProblem = "bit fields";
 				continue;
 			}
 
 			if ((matcher = match(structMemberPattern, line)) == null) {
 				flushBitField(buf);
-				if (!line.equals(""))
+				if (!line.equals("")) {
 					buf.append("UNHANDLED: ").append(line).append("\n");
+					layoutProblem = "unhandled member";
+				}
 				continue;
 			}
 
@@ -570,6 +639,10 @@ else if (matcher.group(2) != null)
 			String suffix = matcher.group(3);
 			String originalType = type;
 			type = translateType(type, true);
+			String element = panamaLayout(type, true);
+			for (String field : matcher.group(2).split(" *, *"))
+				if (!addLayout(layout, panamaArray(element, suffix), field))
+					layoutProblem = "type " + originalType + suffix;
 			if (!suffix.equals("")) {
 				// add [][][] to type, turn suffix into
 				String brackets = suffix.replaceAll("[^\\[\\]]", "");
@@ -589,8 +662,34 @@ else if (matcher.group(2) != null)
 			buf.append("public ").append(type)
 				.append(" ").append(matcher.group(2))
 				.append(suffix).append(";\n");
+
+			// the type may be followed by a comment
+			String scalar = type.replaceAll(" .*", "");
+			if (manualSync && suffix.equals("") && scalarTypes.contains(scalar)) {
+				String field = matcher.group(2);
+				accessors.append("public " + scalar + " read_" + field + "() {\n"
+					+ "\treadField(\"" + field + "\");\n"
+					+ "\treturn " + field + ";\n"
+					+ "}\n"
+					+ "public void write_" + field + "(" + scalar + " value) {\n"
+					+ "\t" + field + " = value;\n"
+					+ "\twriteField(\"" + field + "\");\n"
+					+ "}\n");
+			}
 		}
 		flushBitField(buf);
+		buf.append(accessors);
+		if (panamaDir != null && level == 0 && name != null) {
+			if (layoutProblem == null && layout.length() > 0) {
+				panamaLayouts.append("public static final StructLayout " + name
+					+ " = PanamaSupport.struct(\"" + name + "\",\n" + layout + ");\n");
+				panamaStructs.add(name);
+			}
+			else
+				print("No memory layout for " + name + ": " + layoutProblem);
+		}
+		// without automatic synchronization, fields must be read and written explicitly
+		String sync = manualSync ? "\t\tsetAutoSynch(false);\n" : "";
 		if (level == 0)
 			name2lib.put(name, currentLib);
 		String prefix = constants.toString();
@@ -617,12 +716,14 @@ else if (matcher.group(2) != null)
 				+ "\t\tsuper();\n"
 				// need to calculate the size now, as array members are only initialized at this point
 				+ "\t\tensureAllocated();\n"
+				+ sync
 				+ "\t}\n"
 				+ "\n"
 				+ "\tpublic " + name + "(Pointer p) {\n"
 				// cannot use super(p); otherwise array members are not initialized and the wrong size is calculated!
 				+ "\t\tsuper();\n"
 				+ "\t\tuseMemory(p);\n"
+				+ sync
 				+ "\t\tread();\n"
 				+ "\t}\n"
 				+ "\n", level)
@@ -630,6 +731,143 @@ else if (matcher.group(2) != null)
 			+ indent("}\n", level);
 	}
 
+	/**
+	 * Appends a member to a memory layout.
+	 *
+	 * @return false if the member cannot be laid out
+	 */
+	protected boolean addLayout(final StringBuffer layout, final String element, final String name) {
+		if (element == null)
+			return false;
+		if (layout.length() > 0)
+			layout.append(",\n");
+		layout.append("\t").append(element).append(".withName(\"").append(name).append("\")");
+		return true;
+	}
+
+	/**
+	 * Returns the memory layout for a translated type, or null if there is none.
+	 *
+	 * Structures are laid out in place when they are members, and passed by
+	 * reference when they are parameters.
+	 */
+	protected String panamaLayout(final String translatedType, final boolean inStruct) {
+		String type = translatedType.replaceAll(" */\\*.*\\*/", "").trim();
+		if (type.equals("byte") || type.equals("short") || type.equals("int") ||
+				type.equals("long") || type.equals("float") || type.equals("double"))
+			return "ValueLayout.JAVA_" + type.toUpperCase();
+		if (type.equals("NativeLong"))
+			// the carrier differs between platforms, so it cannot be passed to invokeExact()
+			return inStruct ? "PanamaSupport.C_LONG" : null;
+		if (type.equals("void") || type.endsWith(".ByValue"))
+			return null;
+		if (!inStruct || type.equals("Pointer") || type.equals("String"))
+			return "ValueLayout.ADDRESS";
+		String name = type.substring(type.lastIndexOf('.') + 1);
+		if (!panamaStructs.contains(name))
+			return null;
+		String lib = name2lib.get(name);
+		return lib == null || lib.equals(currentLib) ? name : lib + "Layouts." + name;
+	}
+
+	/**
+	 * Wraps a memory layout into sequence layouts for the dimensions given as
+	 * <code>[a][b]...</code>, or returns null if a dimension is not a (sum of)
+	 * known constants.
+	 */
+	protected String panamaArray(final String element, final String suffix) {
+		if (element == null || suffix.trim().equals(""))
+			return element;
+		String result = element;
+		String[] dimensions = suffix.trim().replaceAll("^\\[|\\]$", "").split("\\] *\\[");
+		for (int i = dimensions.length - 1; i >= 0; i--) {
+			long count = 0;
+			for (String term : dimensions[i].split("\\+")) {
+				String value = term.trim();
+				if (!value.matches("\\d+"))
+					value = intConstants.get(value);
+				if (value == null)
+					return null;
+				count += Long.parseLong(value);
+			}
+			result = "MemoryLayout.sequenceLayout(" + count + ", " + result + ")";
+		}
+		return result;
+	}
+
+	protected static String panamaCarrier(final String layout) {
+		if (layout.equals("ValueLayout.ADDRESS"))
+			return "long";
+		return layout.substring("ValueLayout.JAVA_".length()).toLowerCase();
+	}
+
+	/**
+	 * Generates the downcall handle of a function, and a static method calling
+	 * it, which takes native addresses instead of pointers.
+	 */
+	protected void panamaFunction(final String returnType, final String name, final String parameters) {
+		if (!panamaFunctions.add(name))
+			return; // the overloads share one handle
+		String returnLayout = panamaLayout(returnType, false);
+		if (returnLayout == null && !returnType.equals("void")) {
+			print("No downcall handle for " + name + ": return type " + returnType);
+			return;
+		}
+		StringBuffer layouts = new StringBuffer(), declaration = new StringBuffer();
+		StringBuffer arguments = new StringBuffer(), names = new StringBuffer();
+		for (String parameter : parameters.split(", ")) {
+			if (parameter.equals(""))
+				continue;
+			int space = parameter.lastIndexOf(' ');
+			String param = parameter.substring(space + 1);
+			String layout = panamaLayout(parameter.substring(0, space), false);
+			if (layout == null) {
+				print("No downcall handle for " + name + ": parameter " + parameter);
+				return;
+			}
+			if (names.length() > 0) {
+				layouts.append(", ");
+				declaration.append(", ");
+				arguments.append(", ");
+				names.append(", ");
+			}
+			layouts.append(layout);
+			declaration.append(panamaCarrier(layout)).append(" ").append(param);
+			arguments.append(layout.equals("ValueLayout.ADDRESS") ?
+				"MemorySegment.ofAddress(" + param + ")" : param);
+			names.append(param);
+		}
+
+		String descriptor = returnLayout == null ?
+			"FunctionDescriptor.ofVoid(" + layouts + ")" :
+			"FunctionDescriptor.of(" + returnLayout + (layouts.length() > 0 ? ", " : "") + layouts + ")";
+		panamaHandles.append("protected static final MethodHandle " + name
+			+ " = PanamaSupport.downcall(LOOKUP, \"" + name + "\",\n\t" + descriptor + ");\n");
+
+		String javaType = returnLayout == null ? "void" : panamaCarrier(returnLayout);
+		String call = name + ".invokeExact(" + arguments + ")";
+		if (returnLayout == null)
+			call += ";";
+		else if (returnLayout.equals("ValueLayout.ADDRESS"))
+			call = "return ((MemorySegment)" + call + ").address();";
+		else
+			call = "return (" + javaType + ")" + call + ";";
+		if (panamaMethods.length() > 0)
+			panamaMethods.append("\n");
+		panamaMethods.append("public static " + javaType + " " + name + "(" + declaration + ") {\n"
+			+ "\ttry {\n"
+			+ "\t\t" + call + "\n"
+			+ "\t} catch (Throwable t) {\n"
+			+ "\t\tthrow PanamaSupport.rethrow(t);\n"
+			+ "\t}\n"
+			+ "}\n");
+		panamaCalls.append("\n@Override\n"
+			+ "public " + javaType + " " + name + "(" + declaration + ") {\n"
+			+ "\t" + (returnLayout == null ? "" : "return ") + currentLib + "Panama." + name + "(" + names + ");\n"
+			+ "}\n");
+		panamaBound.add(name);
+	}
+
 	private static String handleMacro(final String text) {
 		String value = text;
 		String[] parameters = value.substring(value.indexOf('(') + 1, value.lastIndexOf(')')).split("\\s*,\\s*");
@@ -705,6 +943,8 @@ else if ((value.indexOf('<') > 0 || value.indexOf('>') > 0 || value.indexOf("=="
 						type = "boolean";
 					else if (value.indexOf('.') >= 0)
 						type = value.endsWith("f") ? "float" : "double";
+					if (type.equals("int") && value.matches("-?\\d+"))
+						intConstants.put(matcher.group(1), value);
 					if (!value.equals("")) {
 						name2lib.put(matcher.group(1), currentLib);
 						buf.append("public static final ").append(type).append(" ")
@@ -754,15 +994,27 @@ else if (value.indexOf('.') >= 0)
 			if ((matcher = match(functionPattern, line)) != null) {
 				if (matcher.group(3).endsWith("va_list"))
 					buf.append("/* Skipping vararg function ").append(line).append(" */\n");
-				else if (line.equals("void avSetLogCallback(void (*callback)(const char *line));"))
+				else if (line.equals("void avSetLogCallback(void (*callback)(int level, const char *line));"))
 					buf.append("public interface AvLog extends Callback {\n"
-							+ "\tpublic void callback(String line);\n"
+							+ "\tpublic void callback(int level, String line);\n"
 							+ "}\n"
 							+ "public void avSetLogCallback(AvLog callback);\n");
-				else
-					buf.append(translateType(matcher.group(1), false))
-					.append(" ").append(matcher.group(2))
-					.append("(").append(functionParameters(matcher.group(3))).append(");\n");
+				else {
+					String declaration = translateType(matcher.group(1), false) + " " + matcher.group(2) + "(";
+					String parameters = functionParameters(matcher.group(3));
+					buf.append(declaration).append(parameters).append(");\n");
+					if (pointerBufferFunctions.contains(matcher.group(2))) {
+						parameters = parameters.replaceAll("byte\\[\\]", "Pointer");
+						buf.append(declaration).append(parameters).append(");\n");
+					}
+					// direct mapping cannot pass arrays of pointers; they are passed as native arrays
+					if (directFunctions.contains(matcher.group(2))) {
+						directDeclarations.append("public static native ").append(declaration)
+							.append(parameters.replaceAll("Pointer\\[\\]", "Pointer")).append(");\n");
+						if (panamaDir != null)
+							panamaFunction(translateType(matcher.group(1), false), matcher.group(2), parameters);
+					}
+				}
 				continue;
 			}
 
@@ -780,6 +1032,7 @@ else if (value.indexOf('.') >= 0)
 						item = item.substring(0, equals);
 					}
 					item = item.trim();
+					intConstants.put(item, "" + number);
 					buf.append("public static final int ").append(item).append(" = " + number++).append(";\n");
 					name2lib.put(item, currentLib);
 				}
@@ -841,6 +1094,10 @@ private void handleHeaders(final File pathToHeaders, final String libName, final
 		out.write("public interface " + libName + " extends Library {\n");
 
 		print("Generating " + libName);
+		directDeclarations = new StringBuffer();
+		panamaHandles = new StringBuffer();
+		panamaMethods = new StringBuffer();
+		panamaLayouts = new StringBuffer();
 		String[] list = libName.equals("AVUTIL") ? pathToHeaders.list() :
 			(libName.equals("AVFORMAT") ?
 			 new String[] { "avformat.h", "avio.h" } :
@@ -862,12 +1119,167 @@ private void handleHeaders(final File pathToHeaders, final String libName, final
 			contents = toJNA(contents);
 			out.write(indent(contents, 1));
 		}
+		if (directDeclarations.length() > 0) {
+			out.write("\n\t// Direct-mapped bindings of the functions called for every frame\n");
+			out.write("\tpublic static class Direct {\n");
+			out.write(indent(directDeclarations.toString(), 2));
+			out.write("\n");
+			out.write("\t\tpublic static void register(com.sun.jna.NativeLibrary library) {\n");
+			out.write("\t\t\tcom.sun.jna.Native.register(Direct.class, library);\n");
+			out.write("\t\t}\n");
+			out.write("\t}\n");
+		}
 		out.write("\t/* avoid compiler warnings */\n");
 		out.write("\tinterface __Dummy__{\n");
 		out.write("\t\tvoid __dummy__(Callback a, Library b, NativeLong c, Pointer d, Structure e, DoubleByReference f, IntByReference g, LongByReference h, PointerByReference i, ShortByReference j);\n");
 		out.write("\t}\n");
 		out.write("}\n");
 		out.close();
+		if (panamaDir != null)
+			writePanamaClasses(libName);
+	}
+
+	protected FileWriter panamaWriter(final String className, final String... imports) throws IOException {
+		File file = new File(panamaDir, "fiji/ffmpeg/panama/" + className + ".java");
+		file.getParentFile().mkdirs();
+		FileWriter out = new FileWriter(file);
+		out.write("package fiji.ffmpeg.panama;\n\n");
+		for (String c : imports)
+			out.write("import " + c + ";\n");
+		if (imports.length > 0)
+			out.write("\n");
+		out.write("// Generated by GenerateFFMPEGClasses; needs the Foreign Function & Memory API (Java 22)\n");
+		return out;
+	}
+
+	protected void writePanamaClasses(final String libName) throws IOException {
+		if (panamaHandles.length() > 0) {
+			FileWriter out = panamaWriter(libName + "Panama",
+				"java.lang.foreign.FunctionDescriptor",
+				"java.lang.foreign.MemorySegment",
+				"java.lang.foreign.SymbolLookup",
+				"java.lang.foreign.ValueLayout",
+				"java.lang.invoke.MethodHandle");
+			out.write("public class " + libName + "Panama {\n");
+			out.write("\tprotected static final SymbolLookup LOOKUP = PanamaSupport.lookup(\""
+				+ libName.toLowerCase() + "\");\n\n");
+			out.write(indent(panamaHandles.toString(), 1));
+			out.write("\n\t// the functions are bound when the class is initialized\n");
+			out.write("\tpublic static void init() {}\n\n");
+			out.write(indent(panamaMethods.toString(), 1));
+			out.write("}\n");
+			out.close();
+			panamaBindings.append("case \"" + libName.toLowerCase() + "\":\n"
+				+ "\t" + libName + "Panama.init();\n"
+				+ "\treturn true;\n");
+		}
+		if (panamaLayouts.length() > 0) {
+			FileWriter out = panamaWriter(libName + "Layouts",
+				"java.lang.foreign.MemoryLayout",
+				"java.lang.foreign.StructLayout",
+				"java.lang.foreign.ValueLayout");
+			out.write("public class " + libName + "Layouts {\n");
+			out.write(indent(panamaLayouts.toString(), 1));
+			out.write("}\n");
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the helpers of the Panama bindings, and the class implementing
+	 * fiji.ffmpeg.NativeCalls with them. If any of its functions did not get
+	 * a downcall handle, there is no PanamaCalls, and the plugin uses JNA.
+	 */
+	protected void writePanamaSupport() throws IOException {
+		FileWriter out = panamaWriter("PanamaSupport",
+			"java.lang.foreign.Arena",
+			"java.lang.foreign.FunctionDescriptor",
+			"java.lang.foreign.Linker",
+			"java.lang.foreign.MemoryLayout",
+			"java.lang.foreign.MemorySegment",
+			"java.lang.foreign.StructLayout",
+			"java.lang.foreign.SymbolLookup",
+			"java.lang.foreign.ValueLayout",
+			"java.lang.invoke.MethodHandle",
+			"java.nio.file.Path",
+			"java.util.ArrayList",
+			"java.util.List",
+			"java.util.Map",
+			"java.util.concurrent.ConcurrentHashMap");
+		out.write("public class PanamaSupport {\n"
+			+ "\tpublic static final ValueLayout C_LONG =\n"
+			+ "\t\t(ValueLayout)Linker.nativeLinker().canonicalLayouts().get(\"long\");\n"
+			+ "\n"
+			+ "\t// the paths of the libraries, as loaded by JNA\n"
+			+ "\tprotected static final Map<String, String> paths = new ConcurrentHashMap<>();\n"
+			+ "\n"
+			+ "\tpublic static SymbolLookup lookup(String library) {\n"
+			+ "\t\tString path = paths.get(library);\n"
+			+ "\t\tif (path == null)\n"
+			+ "\t\t\tthrow new IllegalStateException(\"Library not loaded: \" + library);\n"
+			+ "\t\treturn SymbolLookup.libraryLookup(Path.of(path), Arena.global());\n"
+			+ "\t}\n"
+			+ "\n"
+			+ "\tpublic static MethodHandle downcall(SymbolLookup lookup, String name, FunctionDescriptor descriptor) {\n"
+			+ "\t\treturn Linker.nativeLinker().downcallHandle(lookup.find(name).orElseThrow(), descriptor);\n"
+			+ "\t}\n"
+			+ "\n"
+			+ "\t// lays out the members like the C compiler does, with padding for their alignment\n"
+			+ "\tpublic static StructLayout struct(String name, MemoryLayout... members) {\n"
+			+ "\t\tList<MemoryLayout> list = new ArrayList<>();\n"
+			+ "\t\tlong offset = 0, alignment = 1;\n"
+			+ "\t\tfor (MemoryLayout member : members) {\n"
+			+ "\t\t\tlong padding = -offset & (member.byteAlignment() - 1);\n"
+			+ "\t\t\tif (padding > 0)\n"
+			+ "\t\t\t\tlist.add(MemoryLayout.paddingLayout(padding));\n"
+			+ "\t\t\tlist.add(member);\n"
+			+ "\t\t\toffset += padding + member.byteSize();\n"
+			+ "\t\t\talignment = Math.max(alignment, member.byteAlignment());\n"
+			+ "\t\t}\n"
+			+ "\t\tif ((offset & (alignment - 1)) != 0)\n"
+			+ "\t\t\tlist.add(MemoryLayout.paddingLayout(-offset & (alignment - 1)));\n"
+			+ "\t\treturn MemoryLayout.structLayout(list.toArray(new MemoryLayout[0])).withName(name);\n"
+			+ "\t}\n"
+			+ "\n"
+			+ "\t// a view of a frame plane, e.g. for bulk copies with MemorySegment.copy()\n"
+			+ "\tpublic static MemorySegment plane(long address, int linesize, int height) {\n"
+			+ "\t\treturn MemorySegment.ofAddress(address).reinterpret((long)linesize * height);\n"
+			+ "\t}\n"
+			+ "\n"
+			+ "\tpublic static RuntimeException rethrow(Throwable t) {\n"
+			+ "\t\tif (t instanceof RuntimeException)\n"
+			+ "\t\t\treturn (RuntimeException)t;\n"
+			+ "\t\tif (t instanceof Error)\n"
+			+ "\t\t\tthrow (Error)t;\n"
+			+ "\t\treturn new RuntimeException(t);\n"
+			+ "\t}\n"
+			+ "}\n");
+		out.close();
+
+		StringBuffer missing = new StringBuffer();
+		for (String[] call : NATIVE_CALLS)
+			if (!panamaBound.contains(call[1]))
+				missing.append(missing.length() > 0 ? ", " : "").append(call[1]);
+		if (missing.length() > 0) {
+			print("No Panama bindings for " + missing + "; the Panama backend will not be available");
+			// do not leave the class of an earlier run behind
+			new File(panamaDir, "fiji/ffmpeg/panama/PanamaCalls.java").delete();
+			return;
+		}
+		out = panamaWriter("PanamaCalls");
+		out.write("public class PanamaCalls implements fiji.ffmpeg.NativeCalls {\n"
+			+ "\t@Override\n"
+			+ "\tpublic boolean bind(String library, String path) {\n"
+			+ "\t\tPanamaSupport.paths.put(library, path);\n"
+			+ "\t\tswitch (library) {\n"
+			+ indent(panamaBindings.toString(), 2)
+			+ "\t\tdefault:\n"
+			+ "\t\t\treturn false;\n"
+			+ "\t\t}\n"
+			+ "\t}\n"
+			+ indent(panamaCalls.toString(), 1)
+			+ "}\n");
+		out.close();
 	}
 
 	public static int parseInt(final String number) {
@@ -912,5 +1324,11 @@ protected void generate(final File ffmpegDir, final File outDir) {
 				print("Could not handle " + lib + ": " + e);
 			}
 		}
+		if (panamaDir != null) try {
+			writePanamaSupport();
+		} catch (IOException e) {
+			handleException(e);
+			print("Could not write the Panama bindings: " + e);
+		}
 	}
 }
\ No newline at end of file
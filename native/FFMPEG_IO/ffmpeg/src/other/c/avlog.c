@@ -1,6 +1,7 @@
+#include <pthread.h>
 #include "libavutil/log.h"
 
-extern void avSetLogCallback(void (*callback)(const char *));
+extern void avSetLogCallback(void (*callback)(int level, const char *line));
 
 static size_t log_to_buffer(char *line, size_t size, void* ptr, int level, const char* fmt, va_list vl)
 {
@@ -20,26 +21,37 @@ static size_t log_to_buffer(char *line, size_t size, void* ptr, int level, const
     return strlen(line) + vsnprintf(line + strlen(line), size - strlen(line), fmt, vl);
 }
 
-static void (*line_log_callback)(const char *) = NULL;
+static void (*line_log_callback)(int, const char *) = NULL;
 
+/* Threaded codecs log concurrently; the partial line is shared */
+static pthread_mutex_t line_lock = PTHREAD_MUTEX_INITIALIZER;
+static char line[16384];
+static size_t offset;
+/* the most severe level of the parts of the line */
+static int line_level = AV_LOG_DEBUG;
+
+/* The level is checked here, so that filtered lines cost no call into Java */
 static void helper(void *ptr, int level, const char *fmt, va_list vl)
 {
-    static char line[16384];
-    static size_t offset;
     if(level>av_log_get_level())
         return;
 
+    pthread_mutex_lock(&line_lock);
+    if (offset == 0 || level < line_level)
+        line_level = level;
     offset += log_to_buffer(line + offset, sizeof(line) - offset, ptr, level, fmt, vl);
     /* Call only for full lines */
     if (offset + 1 >= sizeof(line) ||
 		(offset > 0 && line[offset - 1] == '\n' &&
 			(line[offset - 1] = '\0') == '\0')) {
-        line_log_callback(line);
+        /* the callback only queues the line, so it is safe to hold the lock */
+        line_log_callback(line_level, line);
         offset = 0;
     }
+    pthread_mutex_unlock(&line_lock);
 }
 
-void avSetLogCallback(void (*callback)(const char *))
+void avSetLogCallback(void (*callback)(int level, const char *line))
 {
     line_log_callback = callback;
     av_log_set_callback(helper);
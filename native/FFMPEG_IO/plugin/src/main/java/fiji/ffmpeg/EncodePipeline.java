@@ -0,0 +1,235 @@
+package fiji.ffmpeg;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.io.IOException;
+
+import com.sun.jna.Pointer;
+
+import fiji.ffmpeg.AVCODEC.AVFrame;
+import fiji.ffmpeg.AVFORMAT.AVStream;
+
+/**
+ * Writes the slices of a stack, fetching and converting them on background
+ * threads while the calling thread encodes.
+ *
+ * A single reader thread fetches the slices in order, as virtual stacks
+ * are neither fast nor necessarily safe to read concurrently or out of
+ * order. Every worker takes the next fetched slice, packs its pixels and
+ * converts them (with its own swscale context) into a ring of preallocated
+ * frames in the codec's pixel format. The calling thread takes the frames
+ * out of the ring in order, and only encodes and muxes them.
+ */
+public class EncodePipeline {
+	protected IO io;
+	protected ImageStack stack;
+	protected AVStream videoStream;
+	protected int threadCount, frameCount;
+	protected AVFrame[] ring;
+	// the frame (1-based) held by each ring slot, once it is ready
+	protected int[] ready;
+	// the slices fetched for each ring slot, until a worker takes them
+	protected ImageProcessor[] fetched;
+	protected int nextFrame, fetchedCount, nextConverted, encoded;
+	protected boolean cancelled;
+	protected Throwable error;
+
+	public EncodePipeline(IO io, ImageStack stack, AVStream videoStream, int threadCount) {
+		this(io, stack, videoStream, threadCount, threadCount + 2);
+	}
+
+	public EncodePipeline(IO io, ImageStack stack, AVStream videoStream, int threadCount, int ringSize) {
+		this.io = io;
+		this.stack = stack;
+		this.videoStream = videoStream;
+		this.threadCount = threadCount;
+		frameCount = stack.getSize();
+		ring = new AVFrame[Math.max(2, ringSize)];
+		ready = new int[ring.length];
+		fetched = new ImageProcessor[ring.length];
+	}
+
+	public void run() throws IOException {
+		Thread[] threads = new Thread[threadCount + 1];
+		try {
+			for (int i = 0; i < ring.length; i++) {
+				ring[i] = FramePool.getFrame(io.codecContext.width, io.codecContext.height,
+					io.codecContext.pix_fmt);
+				if (io.lumaPassthrough)
+					io.fillNeutralChroma(ring[i]);
+			}
+			threads[0] = new Thread(new Reader(), "FFMPEG encode pipeline reader");
+			for (int i = 1; i < threads.length; i++)
+				threads[i] = new Thread(new Worker(), "FFMPEG encode pipeline " + i);
+			for (Thread thread : threads) {
+				thread.setDaemon(true);
+				thread.start();
+			}
+			for (int frame = 1; frame <= frameCount; frame++) {
+				io.step(null, frame / (double)frameCount, frame - 1, frameCount, io.bytesProcessed);
+				io.encodeVideoFrame(waitForFrame(frame), videoStream);
+				frameEncoded(frame);
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while writing");
+		} finally {
+			synchronized (this) {
+				cancelled = true;
+				notifyAll();
+			}
+			for (Thread thread : threads)
+				if (thread != null) try {
+					thread.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			for (int i = 0; i < ring.length; i++)
+				if (ring[i] != null)
+					FramePool.release(ring[i]);
+		}
+	}
+
+	protected synchronized AVFrame waitForFrame(int frame) throws InterruptedException, IOException {
+		int slot = (frame - 1) % ring.length;
+		while (ready[slot] != frame) {
+			if (error != null) {
+				if (error instanceof OutOfMemoryError)
+					throw (OutOfMemoryError)error;
+				throw new IOException("Could not prepare frame: " + error);
+			}
+			wait();
+		}
+		return ring[slot];
+	}
+
+	protected synchronized void frameEncoded(int frame) {
+		encoded = frame;
+		notifyAll();
+	}
+
+	/**
+	 * Hands out the next frame to fetch, waiting until its ring slot is
+	 * free.
+	 *
+	 * @return the frame (1-based), or -1 if there is nothing left to do
+	 */
+	protected synchronized int takeFrame() throws InterruptedException {
+		if (cancelled || nextFrame >= frameCount)
+			return -1;
+		int frame = ++nextFrame;
+		while (frame - encoded > ring.length && !cancelled)
+			wait();
+		return cancelled ? -1 : frame;
+	}
+
+	protected synchronized void frameFetched(int frame, ImageProcessor ip) {
+		fetched[(frame - 1) % ring.length] = ip;
+		fetchedCount = frame;
+		notifyAll();
+	}
+
+	/**
+	 * Hands out the next fetched frame to convert, waiting until it is
+	 * fetched.
+	 *
+	 * @return the frame (1-based), or -1 if there is nothing left to do
+	 */
+	protected synchronized int takeFetchedFrame() throws InterruptedException {
+		for (;;) {
+			if (cancelled || nextConverted >= frameCount)
+				return -1;
+			if (nextConverted < fetchedCount)
+				return ++nextConverted;
+			wait();
+		}
+	}
+
+	protected synchronized ImageProcessor takeProcessor(int frame) {
+		int slot = (frame - 1) % ring.length;
+		ImageProcessor result = fetched[slot];
+		fetched[slot] = null;
+		return result;
+	}
+
+	protected synchronized void frameReady(int frame) {
+		ready[(frame - 1) % ring.length] = frame;
+		notifyAll();
+	}
+
+	protected synchronized void fail(Throwable t) {
+		if (error == null)
+			error = t;
+		cancelled = true;
+		notifyAll();
+	}
+
+	protected class Reader implements Runnable {
+		@Override
+		public void run() {
+			try {
+				for (;;) {
+					int frame = takeFrame();
+					if (frame < 0)
+						break;
+					frameFetched(frame, stack.getProcessor(frame));
+				}
+			} catch (InterruptedException e) {
+				/* cancelled */
+			} catch (Throwable t) {
+				fail(t);
+			}
+		}
+	}
+
+	protected class Worker implements Runnable {
+		protected AVFrame bufferFrame;
+		protected Pointer swsContext;
+		protected byte[] row;
+
+		@Override
+		public void run() {
+			int width = io.codecContext.width, height = io.codecContext.height;
+			int pixelFormat = io.codecContext.pix_fmt;
+			boolean convert = pixelFormat != io.bufferFramePixelFormat && !io.lumaPassthrough;
+			row = new byte[3 * width];
+			try {
+				if (convert) {
+					bufferFrame = FramePool.getFrame(width, height, io.bufferFramePixelFormat);
+					swsContext = FFMPEG.swScale.sws_getContext(width, height, io.bufferFramePixelFormat,
+						width, height, pixelFormat, SWSCALE.SWS_BICUBIC, null, null, null);
+					if (swsContext == null)
+						throw new OutOfMemoryError("Could not allocate swscale context");
+				}
+				for (;;) {
+					int frame = takeFetchedFrame();
+					if (frame < 0)
+						break;
+					AVFrame target = ring[(frame - 1) % ring.length];
+					ImageProcessor ip = takeProcessor(frame);
+					if (convert) {
+						io.fillImage(bufferFrame, ip, row);
+						StageMetrics metrics = io.metrics;
+						long start = metrics == null ? 0 : metrics.start();
+						FFMPEG.sws_scale(swsContext, bufferFrame.data, bufferFrame.linesize,
+							0, height, target.data, target.linesize);
+						if (metrics != null)
+							metrics.record(StageMetrics.SCALE_OUT, start);
+					}
+					else
+						io.fillImage(target, ip, row);
+					frameReady(frame);
+				}
+			} catch (InterruptedException e) {
+				/* cancelled */
+			} catch (Throwable t) {
+				fail(t);
+			} finally {
+				if (swsContext != null)
+					FFMPEG.swScale.sws_freeContext(swsContext);
+				if (bufferFrame != null)
+					FramePool.release(bufferFrame);
+			}
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package fiji.ffmpeg;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Named sets of encoder options (see {@link MovieWriter#open}).
+ *
+ * The lossless presets store 8-bit gray images in the luma plane verbatim;
+ * import such movies with the <i>Luma</i> colour mode to get the original
+ * values back. Which image types a preset stores losslessly depends on the
+ * pixel formats the encoder of the loaded ffmpeg libraries supports, so
+ * the descriptions are derived from them; the names stay the same, so that
+ * recorded macros work with any build of ffmpeg.
+ */
+public class EncoderPresets {
+	public final static String DEFAULT = "Default (from file extension)";
+
+	// name, file extensions, options
+	protected final static String[][] PRESETS = {
+		{ DEFAULT, null, "" },
+		{ "FFV1 lossless", ".avi, .mkv", "codec=ffv1 gray=luma" },
+		{ "HuffYUV lossless", ".avi", "codec=huffyuv gray=luma" },
+		{ "Lossless JPEG", ".avi", "codec=ljpeg gray=luma" },
+		{ "H.264 lossless", ".mkv, .mp4",
+			"codec=libx264 gray=luma cqp=0 bf=0 refs=1 me_method=dia subq=1" },
+		{ "JPEG-LS lossless", ".avi", "codec=jpegls" },
+		{ "PNG lossless", ".mov, .avi", "codec=png" }
+	};
+
+	protected final static int[] RGB_FORMATS = {
+		AVUTIL.PIX_FMT_RGB24, AVUTIL.PIX_FMT_BGR24, AVUTIL.PIX_FMT_RGB32,
+		AVUTIL.PIX_FMT_BGRA, AVUTIL.PIX_FMT_RGBA, AVUTIL.PIX_FMT_ARGB, AVUTIL.PIX_FMT_ABGR
+	};
+
+	/**
+	 * Returns the names of the presets whose encoder is part of the loaded
+	 * ffmpeg libraries.
+	 */
+	public static String[] getAvailable() {
+		FFMPEG.avFormat.av_register_all();
+		List<String> result = new ArrayList<String>();
+		for (String[] preset : PRESETS)
+			if (isAvailable(preset))
+				result.add(preset[0]);
+		return result.toArray(new String[result.size()]);
+	}
+
+	/**
+	 * Returns the options of a preset, or null if there is no such preset.
+	 */
+	public static Map<String, String> get(String name) {
+		for (String[] preset : PRESETS)
+			if (preset[0].equals(name))
+				return parse(preset[2]);
+		return null;
+	}
+
+	/**
+	 * Describes the available presets, one per line, e.g. "PNG lossless:
+	 * 8-bit and RGB (.mov, .avi)".
+	 */
+	public static String getDescription() {
+		FFMPEG.avFormat.av_register_all();
+		StringBuilder builder = new StringBuilder();
+		for (String[] preset : PRESETS) {
+			if (preset[1] == null || !isAvailable(preset))
+				continue;
+			if (builder.length() > 0)
+				builder.append('\n');
+			builder.append(preset[0]).append(": ");
+			String types = getLosslessTypes(preset);
+			if (types != null)
+				builder.append(types).append(' ');
+			builder.append('(').append(preset[1]).append(')');
+		}
+		return builder.toString();
+	}
+
+	protected static AVCODEC.AVCodec getEncoder(String[] preset) {
+		String codec = parse(preset[2]).get(MovieWriter.CODEC);
+		return codec == null ? null : FFMPEG.avCodec.avcodec_find_encoder_by_name(codec);
+	}
+
+	protected static boolean isAvailable(String[] preset) {
+		return parse(preset[2]).get(MovieWriter.CODEC) == null || getEncoder(preset) != null;
+	}
+
+	protected static String getLosslessTypes(String[] preset) {
+		AVCODEC.AVCodec encoder = getEncoder(preset);
+		if (encoder == null)
+			return null;
+		return getLosslessTypes(IO.getPixelFormats(encoder), "luma".equals(parse(preset[2]).get(MovieWriter.GRAY)));
+	}
+
+	/**
+	 * Describes the image types that can be stored losslessly in one of the
+	 * given pixel formats, e.g. "8/16-bit and RGB".
+	 *
+	 * @param luma whether 8-bit gray is stored in the luma plane
+	 * @return the description, or null if there is no such type
+	 */
+	protected static String getLosslessTypes(int[] pixelFormats, boolean luma) {
+		boolean eightBit = luma && pixelFormats.length > 0;
+		boolean sixteenBit = false, rgb = false;
+		for (int format : pixelFormats) {
+			if (format == AVUTIL.PIX_FMT_GRAY8)
+				eightBit = true;
+			else if (format == AVUTIL.PIX_FMT_GRAY16BE || format == AVUTIL.PIX_FMT_GRAY16LE)
+				sixteenBit = true;
+			else
+				for (int rgbFormat : RGB_FORMATS)
+					if (format == rgbFormat)
+						rgb = true;
+		}
+		String gray = eightBit ? (sixteenBit ? "8/16-bit" : "8-bit") : (sixteenBit ? "16-bit" : null);
+		if (gray == null)
+			return rgb ? "RGB" : null;
+		return rgb ? gray + " and RGB" : gray;
+	}
+
+	/**
+	 * Parses options given as <code>key=value</code> pairs separated by
+	 * white space.
+	 */
+	public static Map<String, String> parse(String options) {
+		Map<String, String> result = new LinkedHashMap<String, String>();
+		for (String option : options.trim().split("\\s+")) {
+			if (option.length() == 0)
+				continue;
+			int equals = option.indexOf('=');
+			if (equals < 0)
+				throw new IllegalArgumentException("Expected key=value: " + option);
+			result.put(option.substring(0, equals), option.substring(equals + 1));
+		}
+		return result;
+	}
+}
@@ -15,14 +15,23 @@
 import ij.io.SaveDialog;
 import ij.plugin.PlugIn;
 
+import java.awt.GraphicsEnvironment;
+
 import java.io.IOException;
+import java.util.Map;
 
 public class Exporter implements PlugIn {
+	static {
+		// load the libraries in the background while the dialogs are shown
+		FFMPEG.init();
+	}
+
 	@Override
 	public void run(String arg) {
 		IO io;
 		try {
-			io = new IO(new IJProgress());
+			io = new IO(GraphicsEnvironment.isHeadless() ?
+				new StderrProgress() : new IJProgress());
 		} catch (IOException e) {
 			IJ.error("This plugin needs ffmpeg to be installed!");
 			return;
@@ -34,11 +43,6 @@ public void run(String arg) {
 			return;
 		}
 
-		if (image.getType() == ImagePlus.GRAY32) {
-			IJ.error("Need a color, 8-bit or 16-bit image");
-			return;
-		}
-
 		String name = IJ.getImage().getTitle();
 		SaveDialog sd = new SaveDialog("Export via FFMPEG",
 				name, ".mpg");
@@ -49,15 +53,65 @@ public void run(String arg) {
 		GenericDialog gd = new GenericDialog("FFMPEG Exporter");
 		gd.addNumericField("Framerate", 25, 0);
 		gd.addNumericField("Bitrate", 400000, 0);
+		String[] presets = EncoderPresets.getAvailable();
+		gd.addChoice("Preset", presets, presets[0]);
+		gd.addMessage(EncoderPresets.getDescription());
+		gd.addStringField("Codec (empty = from preset or extension)", "", 12);
+		gd.addStringField("Pixel_format (empty = automatic)", "", 12);
+		gd.addNumericField("GOP_size (0 = default)", 0, 0);
+		gd.addNumericField("B-frames (-1 = default)", -1, 0);
+		gd.addNumericField("Quality (qscale, or CRF for libx264; 0 = use bitrate)", 0, 1);
+		gd.addStringField("Encoder_options (key=value ...)", "", 30);
+		boolean deep = image.getType() == ImagePlus.GRAY16 || image.getType() == ImagePlus.GRAY32;
+		// only used when the codec has fewer bits than the image
+		if (deep)
+			gd.addNumericField("Saturated_pixels (%)", 0, 2);
+		gd.addNumericField("Encoder_threads", Runtime.getRuntime().availableProcessors(), 0);
+		gd.addChoice("Threading", Importer.THREADING_TYPES, Importer.THREADING_TYPES[0]);
+		gd.addNumericField("Conversion_threads", io.exportThreads, 0);
 		gd.showDialog();
 		if (gd.wasCanceled())
 			return;
 
 		int frameRate = (int)gd.getNextNumber();
 		int bitRate = (int)gd.getNextNumber();
+		Map<String, String> options = EncoderPresets.get(gd.getNextChoice());
+		options.put(MovieWriter.FRAME_RATE, "" + frameRate);
+		options.put(MovieWriter.BIT_RATE, "" + bitRate);
+		String codec = gd.getNextString().trim();
+		if (!codec.equals(""))
+			options.put(MovieWriter.CODEC, codec);
+		String pixelFormat = gd.getNextString().trim();
+		if (!pixelFormat.equals(""))
+			options.put(MovieWriter.PIXEL_FORMAT, pixelFormat);
+		int gopSize = (int)gd.getNextNumber();
+		if (gopSize > 0)
+			options.put(MovieWriter.GOP_SIZE, "" + gopSize);
+		int bFrames = (int)gd.getNextNumber();
+		if (bFrames >= 0)
+			options.put(MovieWriter.B_FRAMES, "" + bFrames);
+		double quality = gd.getNextNumber();
+		if (quality > 0) {
+			codec = options.get(MovieWriter.CODEC);
+			boolean crf = codec != null && codec.startsWith("libx264");
+			options.put(crf ? MovieWriter.CRF : MovieWriter.QSCALE, "" + quality);
+		}
+		try {
+			options.putAll(EncoderPresets.parse(gd.getNextString()));
+		} catch (IllegalArgumentException e) {
+			IJ.error(e.getMessage());
+			return;
+		}
+		if (deep)
+			options.put(MovieWriter.SATURATED, "" + gd.getNextNumber());
+		io.setThreadCount((int)gd.getNextNumber());
+		io.setThreadType(Importer.THREADING_TYPE_FLAGS[gd.getNextChoiceIndex()]);
+		io.setExportThreads((int)gd.getNextNumber());
 
 		try {
-			io.writeMovie(image, path, frameRate, bitRate);
+			io.writeMovie(image, path, options);
+			if (io.getMetrics() != null)
+				IJ.log(io.getMetrics().toString());
 			IJ.showStatus("Saved " + path + ".");
 		} catch (OutOfMemoryError e) {
 			io.free();
@@ -4,42 +4,365 @@
  * Base class to handle loading the FFMPEG libraries.
  */
 
+import ij.IJ;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.sun.jna.Memory;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import com.sun.jna.ptr.IntByReference;
+
 import fiji.ffmpeg.AVCODEC;
+import fiji.ffmpeg.AVCODEC.AVCodecContext;
+import fiji.ffmpeg.AVCODEC.AVFrame;
+import fiji.ffmpeg.AVCODEC.AVPacket;
 import fiji.ffmpeg.AVFORMAT;
+import fiji.ffmpeg.AVFORMAT.AVFormatContext;
 import fiji.ffmpeg.AVUTIL;
 
 public class FFMPEG extends JNALibraryLoader {
-	protected static AVUTIL avUtil;
-	protected static AVCORE avCore;
-	protected static AVDEVICE avDevice;
-	protected static AVCODEC avCodec;
-	protected static AVFORMAT avFormat;
-	protected static AVLOG avLog;
-	protected static SWSCALE swScale;
+	// proxies loading the library on first use, then the library itself; see LazyLibrary
+	protected static volatile AVUTIL avUtil;
+	protected static volatile AVCORE avCore;
+	protected static volatile AVDEVICE avDevice;
+	protected static volatile AVCODEC avCodec;
+	protected static volatile AVFORMAT avFormat;
+	protected static volatile AVLOG avLog;
+	protected static volatile SWSCALE swScale;
+	// in the order the libraries depend on each other
+	protected static LazyLibrary[] lazyLibraries;
+	// whether the Direct classes of the libraries are registered; see LazyLibrary.get()
+	protected static volatile boolean directAVCodec, directAVFormat, directSWScale;
+
+	public final static String BACKEND_JNA = "jna", BACKEND_PANAMA = "panama";
+	protected static String backend = System.getProperty("fiji.ffmpeg.backend", BACKEND_JNA);
+	protected static NativeCalls panama;
+	// whether the backend was looked at to bind a library, after which it cannot change
+	protected static boolean panamaTried;
+	// whether the libraries are bound by the Panama backend; see LazyLibrary.get()
+	protected static volatile boolean panamaAVCodec, panamaAVFormat, panamaSWScale;
 
+	// the plane pointers passed to sws_scale() by direct calls, and the strides for the Panama backend, per thread
+	protected final static ThreadLocal<Memory> planes = new ThreadLocal<Memory>() {
+		@Override
+		protected Memory initialValue() {
+			return new Memory(8 * Pointer.SIZE + 8 * 4);
+		}
+	};
+
+	/**
+	 * Sets up the bindings; every library is loaded only when one of its
+	 * functions is called first, and the commonly needed ones are loaded in
+	 * a background thread right away.
+	 *
+	 * @return whether the bindings could be set up
+	 */
 	public boolean loadFFMPEG() {
-		if (avFormat != null)
-			return true;
-
-		try {
-			avUtil = loadLibrary("avutil",
-				AVUTIL.LIBAVUTIL_VERSION_MAJOR, AVUTIL.class);
-			avCore = loadLibrary("avcore",
-				AVCORE.LIBAVCORE_VERSION_MAJOR, AVCORE.class);
-			avDevice = loadLibrary("avdevice",
-				AVDEVICE.LIBAVDEVICE_VERSION_MAJOR, AVDEVICE.class);
-			avCodec = loadLibrary("avcodec",
-				AVCODEC.LIBAVCODEC_VERSION_MAJOR, AVCODEC.class);
-			avFormat = loadLibrary("avformat",
-				AVFORMAT.LIBAVFORMAT_VERSION_MAJOR, AVFORMAT.class);
-			avLog = loadLibrary("avlog",
-				AVLOG.LIBAVLOG_VERSION_MAJOR, AVLOG.class);
-			swScale = loadLibrary("swscale",
-				SWSCALE.LIBSWSCALE_VERSION_MAJOR, SWSCALE.class);
-		} catch (UnsatisfiedLinkError e) {
-			showException(e);
-			return false;
+		synchronized (FFMPEG.class) {
+			if (avFormat != null)
+				return true;
+
+			lazyLibraries = new LazyLibrary[] {
+				new LazyLibrary(this, "avutil", AVUTIL.LIBAVUTIL_VERSION_MAJOR, AVUTIL.class, "avUtil"),
+				new LazyLibrary(this, "avcore", AVCORE.LIBAVCORE_VERSION_MAJOR, AVCORE.class, "avCore"),
+				new LazyLibrary(this, "avdevice", AVDEVICE.LIBAVDEVICE_VERSION_MAJOR, AVDEVICE.class, "avDevice"),
+				new LazyLibrary(this, "avcodec", AVCODEC.LIBAVCODEC_VERSION_MAJOR, AVCODEC.class, "avCodec"),
+				new LazyLibrary(this, "avformat", AVFORMAT.LIBAVFORMAT_VERSION_MAJOR, AVFORMAT.class, "avFormat"),
+				new LazyLibrary(this, "avlog", AVLOG.LIBAVLOG_VERSION_MAJOR, AVLOG.class, "avLog"),
+				new LazyLibrary(this, "swscale", SWSCALE.LIBSWSCALE_VERSION_MAJOR, SWSCALE.class, "swScale")
+			};
+			for (LazyLibrary library : lazyLibraries)
+				library.setProxy();
 		}
+		preload();
 		return true;
 	}
+
+	/**
+	 * Sets up the bindings and starts loading the libraries needed for
+	 * reading and writing movies in the background; the Importer and
+	 * Exporter call this when their classes are initialized.
+	 */
+	public static void init() {
+		new FFMPEG().loadFFMPEG();
+	}
+
+	/**
+	 * Chooses how the functions called for every frame are bound: with JNA
+	 * (the default), or with the Foreign Function &amp; Memory API
+	 * (<i>panama</i>). The latter needs Java 22 and a .jar built with Java
+	 * 22 (which includes the bindings generated by GenerateFFMPEGClasses);
+	 * without them, JNA is used.
+	 *
+	 * The libraries are bound when they are loaded, which the Importer and
+	 * Exporter start as soon as their classes are initialized; therefore,
+	 * the backend is best chosen with the system property
+	 * <i>fiji.ffmpeg.backend</i>.
+	 *
+	 * @throws IllegalStateException if a library was bound already
+	 */
+	public static synchronized void setBackend(String name) {
+		if (!BACKEND_JNA.equals(name) && !BACKEND_PANAMA.equals(name))
+			throw new IllegalArgumentException("Unknown backend: " + name);
+		if (panamaTried && !name.equals(backend))
+			throw new IllegalStateException("The libraries are bound with " + getBackend() + " already");
+		backend = name;
+	}
+
+	/**
+	 * Returns the backend the functions called for every frame are bound
+	 * with; before the libraries are loaded, this is JNA.
+	 */
+	public static String getBackend() {
+		return panamaAVCodec || panamaAVFormat || panamaSWScale ? BACKEND_PANAMA : BACKEND_JNA;
+	}
+
+	protected static synchronized NativeCalls getPanama() {
+		boolean first = !panamaTried;
+		panamaTried = true;
+		if (!BACKEND_PANAMA.equals(backend))
+			return null;
+		if (first) {
+			try {
+				Class.forName("java.lang.foreign.Linker");
+				panama = (NativeCalls)Class.forName("fiji.ffmpeg.panama.PanamaCalls").newInstance();
+			} catch (Throwable t) {
+				IJ.log("The Panama bindings are not available (" + t + "); using JNA");
+			}
+		}
+		return panama;
+	}
+
+	protected static Thread preloader;
+
+	protected static synchronized void preload() {
+		if (preloader != null)
+			return;
+		final LazyLibrary[] libraries = lazyLibraries;
+		preloader = new Thread("FFMPEG preloader") {
+			@Override
+			public void run() {
+				for (LazyLibrary library : libraries) try {
+					library.get();
+				} catch (Throwable t) {
+					// reported when the library is used
+					return;
+				}
+			}
+		};
+		preloader.setDaemon(true);
+		preloader.start();
+	}
+
+	/**
+	 * Loads a library when it is used first.
+	 *
+	 * Until then, the library's field in FFMPEG holds a proxy; its first
+	 * call loads the library and replaces the proxy in the field with the
+	 * library, so that later calls do not go through the proxy.
+	 */
+	protected static class LazyLibrary implements InvocationHandler {
+		protected JNALibraryLoader loader;
+		protected String name;
+		protected int version;
+		protected Class<?> libraryClass;
+		protected Field field;
+		protected volatile Object library;
+
+		protected LazyLibrary(JNALibraryLoader loader, String name, int version, Class<?> libraryClass,
+				String fieldName) {
+			this.loader = loader;
+			this.name = name;
+			this.version = version;
+			this.libraryClass = libraryClass;
+			try {
+				field = FFMPEG.class.getDeclaredField(fieldName);
+			} catch (NoSuchFieldException e) {
+				throw new IllegalArgumentException("No field " + fieldName);
+			}
+		}
+
+		protected void setProxy() {
+			set(Proxy.newProxyInstance(libraryClass.getClassLoader(), new Class[] { libraryClass }, this));
+		}
+
+		protected void set(Object value) {
+			try {
+				field.set(null, value);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e.toString());
+			}
+		}
+
+		public Object get() {
+			Object result = library;
+			if (result == null)
+				synchronized (this) {
+					if (library == null) {
+						Object loaded = loader.loadLibrary(name, version, libraryClass);
+						// the Direct methods are bound before any caller can see the library
+						registerDirect();
+						library = loaded;
+						set(loaded);
+					}
+					result = library;
+				}
+			return result;
+		}
+
+		/**
+		 * Binds the direct-mapped functions of the library, if it has any.
+		 * Without them, the calls simply go through the proxy.
+		 */
+		protected void registerDirect() {
+			try {
+				Class<?> direct = Class.forName(libraryClass.getName() + "$Direct");
+				direct.getMethod("register", NativeLibrary.class)
+					.invoke(null, NativeLibrary.getInstance(name));
+			} catch (ClassNotFoundException e) {
+				return;
+			} catch (Throwable t) {
+				showException(t);
+				return;
+			}
+			if (libraryClass == AVCODEC.class)
+				directAVCodec = true;
+			else if (libraryClass == AVFORMAT.class)
+				directAVFormat = true;
+			else if (libraryClass == SWSCALE.class)
+				directSWScale = true;
+			bindPanama();
+		}
+
+		/**
+		 * Binds the library's functions called for every frame with the
+		 * Panama backend, if it was chosen (see {@link FFMPEG#setBackend(String)}).
+		 */
+		protected void bindPanama() {
+			NativeCalls calls = getPanama();
+			if (calls == null)
+				return;
+			File file = NativeLibrary.getInstance(name).getFile();
+			try {
+				if (file == null || !calls.bind(name, file.getPath()))
+					return;
+			} catch (Throwable t) {
+				IJ.log("Could not bind " + name + " with the Panama backend (" + t + "); using JNA");
+				return;
+			}
+			if (libraryClass == AVCODEC.class)
+				panamaAVCodec = true;
+			else if (libraryClass == AVFORMAT.class)
+				panamaAVFormat = true;
+			else if (libraryClass == SWSCALE.class)
+				panamaSWScale = true;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				if (method.getName().equals("equals"))
+					return Boolean.valueOf(proxy == args[0]);
+				if (method.getName().equals("hashCode"))
+					return Integer.valueOf(System.identityHashCode(proxy));
+				return "lazy " + name + " library";
+			}
+			try {
+				return method.invoke(get(), args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	/*
+	 * The functions called for every frame, using the Panama or the
+	 * direct-mapped bindings once they are available; there is one wrapper
+	 * per method of NativeCalls, as listed in
+	 * GenerateFFMPEGClasses.NATIVE_CALLS.
+	 *
+	 * The Panama backend passes only the structures' addresses; this works
+	 * as these structures are not synchronized automatically anyway.
+	 */
+
+	protected static long address(Structure structure) {
+		return structure == null ? 0 : Pointer.nativeValue(structure.getPointer());
+	}
+
+	protected static long address(Pointer pointer) {
+		return pointer == null ? 0 : Pointer.nativeValue(pointer);
+	}
+
+	protected static int av_read_frame(AVFormatContext s, AVPacket pkt) {
+		if (panamaAVFormat)
+			return panama.av_read_frame(address(s), address(pkt));
+		if (directAVFormat)
+			return AVFORMAT.Direct.av_read_frame(s, pkt);
+		return avFormat.av_read_frame(s, pkt);
+	}
+
+	protected static int av_interleaved_write_frame(AVFormatContext s, AVPacket pkt) {
+		if (panamaAVFormat)
+			return panama.av_interleaved_write_frame(address(s), address(pkt));
+		if (directAVFormat)
+			return AVFORMAT.Direct.av_interleaved_write_frame(s, pkt);
+		return avFormat.av_interleaved_write_frame(s, pkt);
+	}
+
+	protected static void av_free_packet(AVPacket pkt) {
+		if (panamaAVCodec)
+			panama.av_free_packet(address(pkt));
+		else if (directAVCodec)
+			AVCODEC.Direct.av_free_packet(pkt);
+		else
+			avCodec.av_free_packet(pkt);
+	}
+
+	protected static int avcodec_decode_video2(AVCodecContext avctx, AVFrame picture,
+			IntByReference gotPicture, AVPacket avpkt) {
+		if (panamaAVCodec)
+			return panama.avcodec_decode_video2(address(avctx), address(picture),
+				address(gotPicture.getPointer()), address(avpkt));
+		if (directAVCodec)
+			return AVCODEC.Direct.avcodec_decode_video2(avctx, picture, gotPicture, avpkt);
+		return avCodec.avcodec_decode_video2(avctx, picture, gotPicture, avpkt);
+	}
+
+	protected static int avcodec_encode_video(AVCodecContext avctx, Pointer buf, int bufSize, AVFrame pict) {
+		if (panamaAVCodec)
+			return panama.avcodec_encode_video(address(avctx), address(buf), bufSize, address(pict));
+		if (directAVCodec)
+			return AVCODEC.Direct.avcodec_encode_video(avctx, buf, bufSize, pict);
+		return avCodec.avcodec_encode_video(avctx, buf, bufSize, pict);
+	}
+
+	protected static int sws_scale(Pointer context, Pointer[] src, int[] srcStride, int srcSliceY, int srcSliceH,
+			Pointer[] dst, int[] dstStride) {
+		if (!directSWScale && !panamaSWScale)
+			return swScale.sws_scale(context, src, srcStride, srcSliceY, srcSliceH, dst, dstStride);
+		Memory memory = planes.get();
+		for (int i = 0; i < 4; i++) {
+			memory.setPointer(i * Pointer.SIZE, i < src.length ? src[i] : null);
+			memory.setPointer((4 + i) * Pointer.SIZE, i < dst.length ? dst[i] : null);
+		}
+		if (panamaSWScale) {
+			int strides = 8 * Pointer.SIZE;
+			for (int i = 0; i < 4; i++) {
+				memory.setInt(strides + 4 * i, i < srcStride.length ? srcStride[i] : 0);
+				memory.setInt(strides + 4 * (4 + i), i < dstStride.length ? dstStride[i] : 0);
+			}
+			long base = address(memory);
+			return panama.sws_scale(address(context), base, base + strides, srcSliceY, srcSliceH,
+				base + 4 * Pointer.SIZE, base + strides + 4 * 4);
+		}
+		return SWSCALE.Direct.sws_scale(context, memory, srcStride, srcSliceY, srcSliceH,
+			memory.share(4 * Pointer.SIZE), dstStride);
+	}
 }
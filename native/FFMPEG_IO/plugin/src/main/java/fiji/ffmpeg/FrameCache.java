@@ -0,0 +1,120 @@
+package fiji.ffmpeg;
+
+import ij.IJ;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of decoded frames, bounded by a memory budget.
+ *
+ * The budget is capped at a quarter of ImageJ's maximum memory; when the
+ * heap runs low, half of the cache is evicted.
+ */
+public class FrameCache {
+	protected long budget, used;
+	protected long hits, misses, evictions;
+	protected LinkedHashMap<Integer, ImageProcessor> map =
+		new LinkedHashMap<Integer, ImageProcessor>(16, 0.75f, true);
+
+	/**
+	 * @param budget the maximal number of bytes to cache (negative for the default)
+	 */
+	public FrameCache(long budget) {
+		setBudget(budget);
+	}
+
+	public static long getDefaultBudget() {
+		return IJ.maxMemory() / 8;
+	}
+
+	public synchronized void setBudget(long budget) {
+		this.budget = budget < 0 ? getDefaultBudget() : budget;
+		long maxMemory = IJ.maxMemory();
+		if (maxMemory > 0)
+			this.budget = Math.min(this.budget, maxMemory / 4);
+		evict(this.budget);
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return the cached frame, or null
+	 */
+	public synchronized ImageProcessor get(int slice) {
+		ImageProcessor ip = map.get(Integer.valueOf(slice));
+		if (ip == null)
+			misses++;
+		else
+			hits++;
+		return ip;
+	}
+
+	public synchronized void put(int slice, ImageProcessor ip) {
+		long bytes = getBytes(ip);
+		if (bytes > budget)
+			return;
+		ImageProcessor previous = map.put(Integer.valueOf(slice), ip);
+		if (previous != null)
+			used -= getBytes(previous);
+		used += bytes;
+		evict(budget);
+		if (isMemoryLow())
+			evict(used / 2);
+	}
+
+	public synchronized void clear() {
+		map.clear();
+		used = 0;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getUsedBytes() {
+		return used;
+	}
+
+	public synchronized int getFrameCount() {
+		return map.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "FrameCache[" + map.size() + " frames, " + used + "/" + budget + " bytes, "
+			+ hits + " hits, " + misses + " misses, " + evictions + " evictions]";
+	}
+
+	protected void evict(long maxBytes) {
+		Iterator<Map.Entry<Integer, ImageProcessor>> iter = map.entrySet().iterator();
+		while (used > maxBytes && iter.hasNext()) {
+			used -= getBytes(iter.next().getValue());
+			iter.remove();
+			evictions++;
+		}
+	}
+
+	protected static boolean isMemoryLow() {
+		long maxMemory = IJ.maxMemory();
+		return maxMemory > 0 && IJ.currentMemory() > maxMemory / 10 * 9;
+	}
+
+	protected static long getBytes(ImageProcessor ip) {
+		int bytesPerPixel = ip instanceof ColorProcessor ? 4 : ip.getBitDepth() / 8;
+		return (long)ip.getWidth() * ip.getHeight() * bytesPerPixel;
+	}
+}
@@ -0,0 +1,15 @@
+package fiji.ffmpeg;
+
+/**
+ * Receives the frames of a movie one after another (see
+ * {@link IO#readMovie(String, FrameCallback)}).
+ */
+public interface FrameCallback {
+	/**
+	 * Called for every decoded frame; the frame and its pixels are reused for
+	 * the next frame.
+	 *
+	 * @return whether to continue reading
+	 */
+	boolean frameDecoded(VideoFrame frame);
+}
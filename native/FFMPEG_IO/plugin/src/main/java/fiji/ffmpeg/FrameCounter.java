@@ -0,0 +1,200 @@
+package fiji.ffmpeg;
+
+import java.io.File;
+import java.io.IOException;
+
+import fiji.ffmpeg.AVCODEC.AVPacket;
+import fiji.ffmpeg.AVFORMAT.AVFormatContext;
+import fiji.ffmpeg.AVFORMAT.AVIndexEntry;
+import fiji.ffmpeg.AVFORMAT.AVStream;
+
+/**
+ * Counts the video frames of a movie with a demux-only pass; no packet is
+ * decoded.
+ *
+ * The pass can run on a background thread, reporting the running count to
+ * a listener. Unless a {@link FrameIndex} is built on the way, the pass
+ * ends right away if the container already knows the number of frames.
+ */
+public class FrameCounter implements Runnable {
+	public interface Listener {
+		/**
+		 * Called from the counting thread while counting (at most a couple
+		 * of times per second), and once more when the count is final.
+		 */
+		void frameCountChanged(FrameCounter counter);
+	}
+
+	protected final static long NOTIFY_INTERVAL = 500; // milliseconds
+
+	protected String path;
+	protected int videoStream;
+	protected boolean buildIndex;
+	protected Listener listener;
+	protected Progress progress;
+	protected Thread thread;
+	protected volatile int count;
+	protected volatile boolean done, cancelled;
+	protected FrameIndex index;
+	protected volatile IOException error;
+
+	public FrameCounter(String path, int videoStream, boolean buildIndex) {
+		this.path = path;
+		this.videoStream = videoStream;
+		this.buildIndex = buildIndex;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public void setProgress(Progress progress) {
+		this.progress = progress;
+	}
+
+	/**
+	 * Starts counting on a background thread.
+	 */
+	public void start() {
+		thread = new Thread(this, "FFMPEG frame counter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	@Override
+	public void run() {
+		try {
+			count();
+		} catch (IOException e) {
+			// recorded by count()
+		}
+	}
+
+	/**
+	 * Counts the frames on the calling thread.
+	 *
+	 * @return the number of frames
+	 */
+	public int count() throws IOException {
+		try {
+			AVFormatContext context = IO.openFormatContext(path);
+			try {
+				if (!buildIndex) {
+					int known = getKnownFrameCount(new AVStream(context.streams[videoStream]));
+					if (known > 0) {
+						count = known;
+						return count;
+					}
+				}
+				scan(context);
+			} finally {
+				FFMPEG.avFormat.av_close_input_file(context);
+			}
+			return count;
+		} catch (IOException e) {
+			// before done is set, so that whoever sees the counter done sees the error, too
+			error = e;
+			throw e;
+		} finally {
+			done = true;
+			if (listener != null)
+				listener.frameCountChanged(this);
+		}
+	}
+
+	protected void scan(AVFormatContext context) {
+		File file = new File(path);
+		if (buildIndex)
+			index = new FrameIndex(file.length(), file.lastModified(), videoStream);
+		AVPacket packet = new AVPacket();
+		double factor = file.length() > 0 ? 1.0 / file.length() : 0;
+		long lastNotification = System.currentTimeMillis();
+		if (progress != null)
+			progress.start("Indexing " + path);
+		while (!cancelled && FFMPEG.av_read_frame(context, packet) >= 0) {
+			if (packet.read_stream_index() == videoStream) {
+				if (index != null)
+					index.add(packet.read_pts(), packet.read_dts(), packet.read_pos(),
+						(packet.read_flags() & AVCODEC.PKT_FLAG_KEY) != 0);
+				count++;
+				if ((count & 0xff) == 0) {
+					if (progress != null)
+						progress.step(null, packet.read_pos() * factor);
+					long now = System.currentTimeMillis();
+					if (listener != null && now - lastNotification >= NOTIFY_INTERVAL) {
+						lastNotification = now;
+						listener.frameCountChanged(this);
+					}
+				}
+			}
+			FFMPEG.av_free_packet(packet);
+		}
+		if (index != null) {
+			if (cancelled)
+				index = null;
+			else
+				index.finish();
+		}
+	}
+
+	/**
+	 * Returns the number of frames as recorded by the container, i.e. in the
+	 * stream header or in an index listing every frame.
+	 *
+	 * @return the number of frames, or 0 if it is not known
+	 */
+	public static int getKnownFrameCount(AVStream stream) {
+		if (stream.nb_frames > 0)
+			return (int)stream.nb_frames;
+		// an index holding only keyframes (e.g. Matroska's cues) does not count
+		if (stream.nb_index_entries > 0 && stream.index_entries != null) {
+			int size = new AVIndexEntry().size();
+			for (int i = 0; i < stream.nb_index_entries; i++) {
+				AVIndexEntry entry = new AVIndexEntry(stream.index_entries.share((long)i * size));
+				if ((entry.flags() & AVFORMAT.AVINDEX_KEYFRAME) == 0)
+					return stream.nb_index_entries;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the number of frames counted so far.
+	 */
+	public int getFrameCount() {
+		return count;
+	}
+
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Returns the index built while counting, once counting is done.
+	 *
+	 * @return the index, or null if no (complete) index was built
+	 */
+	public FrameIndex getIndex() {
+		return done ? index : null;
+	}
+
+	/**
+	 * @return the error that stopped counting, if any
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	/**
+	 * Waits until at least the given number of frames were counted, or
+	 * counting is done.
+	 */
+	public void waitFor(int frameCount) throws InterruptedException {
+		while (!done && count < frameCount)
+			Thread.sleep(10);
+	}
+}
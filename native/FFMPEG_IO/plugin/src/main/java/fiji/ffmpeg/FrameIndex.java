@@ -0,0 +1,338 @@
+package fiji.ffmpeg;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A packet-level index of the video frames in a movie file.
+ *
+ * The packets are recorded in decode order (PTS, DTS, keyframe flag and byte
+ * offset); after {@link #finish()}, frames can be looked up in presentation
+ * order, together with the keyframe that has to be decoded first to get to
+ * them.
+ *
+ * Indices can be stored in a sidecar file in the per-user cache directory
+ * (see {@link #getCacheDirectory()}), or next to the movie if the system
+ * property <i>fiji.ffmpeg.sidecarIndex</i> is set and the movie's directory
+ * is writable; they are keyed by the movie's file size and modification
+ * time. The least recently used indices are removed from the cache once it
+ * grows beyond <i>fiji.ffmpeg.indexCacheSize</i> bytes (64 MB by default).
+ */
+public class FrameIndex {
+	public final static String SUFFIX = ".ffindex";
+	protected final static int MAGIC = 0x46464958; // "FFIX"
+	protected final static int VERSION = 1;
+	protected final static long DEFAULT_CACHE_SIZE = 64l << 20;
+
+	protected long fileSize, lastModified;
+	protected int streamIndex;
+
+	// decode order
+	protected int count;
+	protected long[] pts, dts, pos;
+	protected boolean[] keyFrame;
+
+	// presentation order
+	protected int[] decodeIndex, seekPoint;
+
+	public FrameIndex(long fileSize, long lastModified, int streamIndex) {
+		this(fileSize, lastModified, streamIndex, 1024);
+	}
+
+	protected FrameIndex(long fileSize, long lastModified, int streamIndex, int capacity) {
+		this.fileSize = fileSize;
+		this.lastModified = lastModified;
+		this.streamIndex = streamIndex;
+		pts = new long[capacity];
+		dts = new long[capacity];
+		pos = new long[capacity];
+		keyFrame = new boolean[capacity];
+	}
+
+	/**
+	 * Records a video packet (in decode order).
+	 */
+	public void add(long packetPTS, long packetDTS, long position, boolean isKeyFrame) {
+		if (count == pts.length) {
+			int capacity = count * 2;
+			pts = Arrays.copyOf(pts, capacity);
+			dts = Arrays.copyOf(dts, capacity);
+			pos = Arrays.copyOf(pos, capacity);
+			keyFrame = Arrays.copyOf(keyFrame, capacity);
+		}
+		pts[count] = packetPTS;
+		dts[count] = packetDTS;
+		pos[count] = position;
+		keyFrame[count] = isKeyFrame;
+		count++;
+	}
+
+	/**
+	 * Sorts the frames into presentation order and determines the seek points.
+	 */
+	public void finish() {
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++)
+			order[i] = Integer.valueOf(i);
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				long ka = getKey(a.intValue()), kb = getKey(b.intValue());
+				if (ka != kb)
+					return ka < kb ? -1 : 1;
+				return a.intValue() - b.intValue();
+			}
+		});
+
+		// the last keyframe at or before a given packet, in decode order
+		int[] lastKeyFrame = new int[count];
+		for (int i = 0, last = 0; i < count; i++) {
+			if (keyFrame[i])
+				last = i;
+			lastKeyFrame[i] = last;
+		}
+
+		decodeIndex = new int[count];
+		seekPoint = new int[count];
+		for (int i = 0; i < count; i++) {
+			int decode = order[i].intValue();
+			decodeIndex[i] = decode;
+			// leading frames of an open GOP need the previous keyframe
+			int key = lastKeyFrame[decode];
+			while (key > 0 && getKey(key) > getKey(decode))
+				key = lastKeyFrame[key - 1];
+			seekPoint[i] = key;
+		}
+	}
+
+	public int getFrameCount() {
+		return count;
+	}
+
+	public int getStreamIndex() {
+		return streamIndex;
+	}
+
+	/**
+	 * Returns the timestamp identifying the given packet (in decode order):
+	 * the PTS if it is known, the DTS otherwise.
+	 */
+	public long getKey(int decode) {
+		return pts[decode] != IO.AV_NOPTS_VALUE ? pts[decode] : dts[decode];
+	}
+
+	/**
+	 * Returns the timestamp identifying the given frame (0-based, in
+	 * presentation order).
+	 */
+	public long getFrameKey(int frame) {
+		return getKey(decodeIndex[frame]);
+	}
+
+	/**
+	 * Returns the packet (in decode order) of the given frame (0-based, in
+	 * presentation order).
+	 */
+	public int getDecodeIndex(int frame) {
+		return decodeIndex[frame];
+	}
+
+	/**
+	 * Returns the packet (in decode order) of the keyframe that needs to be
+	 * decoded first to get the given frame (0-based, in presentation order).
+	 */
+	public int getSeekPoint(int frame) {
+		return seekPoint[frame];
+	}
+
+	/**
+	 * Returns whether decoding can start at the given frame (0-based, in
+	 * presentation order), i.e. whether it is a keyframe that no earlier
+	 * frame depends on.
+	 */
+	public boolean isSeekPoint(int frame) {
+		return seekPoint[frame] == decodeIndex[frame] &&
+			(frame == 0 || seekPoint[frame - 1] < seekPoint[frame]);
+	}
+
+	/**
+	 * Returns the timestamp to pass to av_seek_frame() to get to the given
+	 * packet (in decode order).
+	 */
+	public long getSeekTimestamp(int decode) {
+		if (dts[decode] != IO.AV_NOPTS_VALUE)
+			return dts[decode];
+		return pts[decode];
+	}
+
+	public long getPosition(int decode) {
+		return pos[decode];
+	}
+
+	public boolean isKeyFrame(int decode) {
+		return keyFrame[decode];
+	}
+
+	public boolean matches(File file) {
+		return file.length() == fileSize && file.lastModified() == lastModified;
+	}
+
+	/**
+	 * Returns the sidecar file for a movie: in the per-user cache directory,
+	 * or next to the movie if that was asked for (see above).
+	 */
+	public static File getSidecarFile(File movie, int streamIndex) throws IOException {
+		String name = movie.getName() + (streamIndex > 0 ? "." + streamIndex : "") + SUFFIX;
+		File directory = movie.getAbsoluteFile().getParentFile();
+		if (Boolean.getBoolean("fiji.ffmpeg.sidecarIndex") && directory != null && directory.canWrite())
+			return new File(directory, name);
+		File cache = getCacheDirectory();
+		return new File(cache, Integer.toHexString(movie.getAbsolutePath().hashCode()) + "-" + name);
+	}
+
+	/**
+	 * Returns the per-user directory of the cached indices, creating it if
+	 * needed: <i>index</i> in the directory given by the system property
+	 * <i>fiji.ffmpeg.cache</i>, defaulting to <i>.cache/fiji-ffmpeg</i> in the
+	 * user's home directory.
+	 */
+	public static File getCacheDirectory() throws IOException {
+		String base = System.getProperty("fiji.ffmpeg.cache");
+		File directory = new File(base != null ? new File(base) :
+			new File(new File(System.getProperty("user.home"), ".cache"), "fiji-ffmpeg"), "index");
+		if (!directory.isDirectory()) {
+			if (!directory.mkdirs() && !directory.isDirectory())
+				throw new IOException("Could not create " + directory);
+			// the file names tell which movies were opened
+			directory.setReadable(false, false);
+			directory.setWritable(false, false);
+			directory.setExecutable(false, false);
+			directory.setReadable(true, true);
+			directory.setWritable(true, true);
+			directory.setExecutable(true, true);
+		}
+		return directory;
+	}
+
+	protected static boolean isCached(File sidecar, File movie) {
+		return !sidecar.getParentFile().equals(movie.getAbsoluteFile().getParentFile());
+	}
+
+	/**
+	 * Removes the least recently used indices from the cache directory
+	 * until it is no larger than the given number of bytes.
+	 */
+	protected static void evict(File directory, long maxSize) {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		long total = 0;
+		for (File file : files)
+			total += file.length();
+		if (total <= maxSize)
+			return;
+		// oldest first; loading an index marks it as used
+		final long[] lastModified = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++) {
+			lastModified[i] = files[i].lastModified();
+			order[i] = Integer.valueOf(i);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				long difference = lastModified[a.intValue()] - lastModified[b.intValue()];
+				return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+			}
+		});
+		for (Integer i : order) {
+			if (total <= maxSize)
+				break;
+			File file = files[i.intValue()];
+			long length = file.length();
+			if (file.getName().contains(SUFFIX) && file.delete())
+				total -= length;
+		}
+	}
+
+	/**
+	 * Reads the sidecar index of a movie, if it exists and is still valid.
+	 *
+	 * @return the index, or null
+	 */
+	public static FrameIndex load(File movie, int streamIndex) {
+		try {
+			File file = getSidecarFile(movie, streamIndex);
+			if (!file.exists())
+				return null;
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION)
+					return null;
+				long fileSize = in.readLong(), lastModified = in.readLong();
+				if (fileSize != movie.length() || lastModified != movie.lastModified() ||
+						in.readInt() != streamIndex)
+					return null;
+				int count = in.readInt();
+				FrameIndex result = new FrameIndex(fileSize, lastModified, streamIndex, Math.max(1, count));
+				for (int i = 0; i < count; i++) {
+					long pts = in.readLong(), dts = in.readLong(), pos = in.readLong();
+					result.add(pts, dts, pos, in.readBoolean());
+				}
+				result.finish();
+				if (isCached(file, movie))
+					file.setLastModified(System.currentTimeMillis());
+				return result;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the index to the sidecar file of the given movie.
+	 *
+	 * The file is written under a temporary name first and then renamed, so
+	 * that concurrent readers never see a partial index.
+	 */
+	public void save(File movie) throws IOException {
+		File file = getSidecarFile(movie, streamIndex);
+		File tmp = new File(file.getPath() + ".tmp" + Long.toHexString(System.nanoTime()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(fileSize);
+			out.writeLong(lastModified);
+			out.writeInt(streamIndex);
+			out.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				out.writeLong(pts[i]);
+				out.writeLong(dts[i]);
+				out.writeLong(pos[i]);
+				out.writeBoolean(keyFrame[i]);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("Could not write " + file);
+			}
+		}
+		if (isCached(file, movie))
+			evict(file.getParentFile(), Long.getLong("fiji.ffmpeg.indexCacheSize", DEFAULT_CACHE_SIZE).longValue());
+	}
+}
@@ -0,0 +1,239 @@
+package fiji.ffmpeg;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.jna.Pointer;
+
+import fiji.ffmpeg.AVCODEC.AVFrame;
+import fiji.ffmpeg.AVCODEC.AVPacket;
+import fiji.ffmpeg.AVCODEC.AVPicture;
+
+/**
+ * A pool of native frames, packets and buffers, shared by all {@link IO}
+ * instances.
+ *
+ * Frames are pooled by geometry and pixel format, so that opening many
+ * movies of the same kind one after another does not allocate new native
+ * memory every time. At most {@link #MAX_POOLED} objects of each kind are
+ * kept; the rest is freed right away. The counters report what is
+ * currently allocated, whether in use or pooled.
+ */
+public class FramePool {
+	public final static int MAX_POOLED = 4;
+
+	protected static Map<String, List<AVFrame>> frames = new HashMap<String, List<AVFrame>>();
+	protected static Map<Pointer, String> frameKeys = new HashMap<Pointer, String>();
+	protected static Map<Pointer, Integer> pictureSizes = new HashMap<Pointer, Integer>();
+	protected static List<AVPacket> packets = new ArrayList<AVPacket>();
+	protected static Map<Integer, List<Pointer>> buffers = new HashMap<Integer, List<Pointer>>();
+	protected static Map<Pointer, Integer> bufferSizes = new HashMap<Pointer, Integer>();
+
+	protected static int liveFrames, pooledFrames, livePackets, liveBuffers;
+	protected static long livePictureBytes, liveBufferBytes;
+
+	/**
+	 * Returns a frame without picture buffer, e.g. for decoding into.
+	 */
+	public static AVFrame getFrame() {
+		return getFrame(0, 0, AVUTIL.PIX_FMT_NONE);
+	}
+
+	/**
+	 * Returns a frame with a picture buffer of the given geometry and pixel
+	 * format; if the width is 0, the frame has no picture buffer.
+	 */
+	public static synchronized AVFrame getFrame(int width, int height, int pixelFormat) {
+		String key = width + "x" + height + ":" + pixelFormat;
+		List<AVFrame> list = frames.get(key);
+		if (list != null && !list.isEmpty()) {
+			pooledFrames--;
+			AVFrame frame = list.remove(list.size() - 1);
+			reset(frame);
+			return frame;
+		}
+
+		AVFrame frame = FFMPEG.avCodec.avcodec_alloc_frame();
+		if (frame == null)
+			throw new OutOfMemoryError("Could not allocate frame");
+		if (width > 0) {
+			if (FFMPEG.avCodec.avpicture_alloc(new AVPicture(frame.getPointer()),
+					pixelFormat, width, height) < 0) {
+				FFMPEG.avUtil.av_free(frame.getPointer());
+				throw new OutOfMemoryError("Could not allocate " + width + "x" + height + " picture");
+			}
+			frame.read();
+			int size = FFMPEG.avCodec.avpicture_get_size(pixelFormat, width, height);
+			pictureSizes.put(frame.getPointer(), Integer.valueOf(size));
+			livePictureBytes += size;
+		}
+		frameKeys.put(frame.getPointer(), key);
+		liveFrames++;
+		return frame;
+	}
+
+	/**
+	 * Clears the fields of a pooled frame, except for its picture buffer.
+	 */
+	protected static void reset(AVFrame frame) {
+		Pointer[] data = frame.data.clone();
+		int[] linesize = frame.linesize.clone();
+		FFMPEG.avCodec.avcodec_get_frame_defaults(frame);
+		if (pictureSizes.containsKey(frame.getPointer())) {
+			frame.data = data;
+			frame.linesize = linesize;
+			frame.writeField("data");
+			frame.writeField("linesize");
+		}
+	}
+
+	/**
+	 * Returns a frame obtained from {@link #getFrame(int, int, int)} to the
+	 * pool, or frees it if the pool is full.
+	 */
+	public static synchronized void release(AVFrame frame) {
+		String key = frameKeys.get(frame.getPointer());
+		if (key == null)
+			throw new IllegalArgumentException("Frame does not come from the pool");
+		List<AVFrame> list = frames.get(key);
+		if (list == null) {
+			list = new ArrayList<AVFrame>();
+			frames.put(key, list);
+		}
+		if (list.size() < MAX_POOLED) {
+			list.add(frame);
+			pooledFrames++;
+		}
+		else
+			free(frame);
+	}
+
+	protected static void free(AVFrame frame) {
+		Integer size = pictureSizes.remove(frame.getPointer());
+		if (size != null) {
+			FFMPEG.avCodec.avpicture_free(new AVPicture(frame.getPointer()));
+			livePictureBytes -= size.intValue();
+		}
+		frameKeys.remove(frame.getPointer());
+		FFMPEG.avUtil.av_free(frame.getPointer());
+		liveFrames--;
+	}
+
+	public static synchronized AVPacket getPacket() {
+		if (!packets.isEmpty())
+			return packets.remove(packets.size() - 1);
+		livePackets++;
+		AVPacket packet = new AVPacket();
+		// packets are not synchronized automatically
+		packet.write();
+		return packet;
+	}
+
+	/**
+	 * Returns a packet to the pool; its payload must have been freed (see
+	 * av_free_packet()).
+	 */
+	public static synchronized void release(AVPacket packet) {
+		packet.write_data(null);
+		packet.write_size(0);
+		if (packets.size() < MAX_POOLED)
+			packets.add(packet);
+		else
+			livePackets--;
+	}
+
+	/**
+	 * Returns a native buffer (allocated with av_malloc()) of at least the
+	 * given size.
+	 */
+	public static synchronized Pointer getBuffer(int size) {
+		List<Pointer> list = buffers.get(Integer.valueOf(size));
+		if (list != null && !list.isEmpty())
+			return list.remove(list.size() - 1);
+		Pointer buffer = FFMPEG.avUtil.av_malloc(size);
+		if (buffer == null)
+			throw new OutOfMemoryError("Could not allocate " + size + " bytes");
+		bufferSizes.put(buffer, Integer.valueOf(size));
+		liveBuffers++;
+		liveBufferBytes += size;
+		return buffer;
+	}
+
+	public static synchronized void release(Pointer buffer) {
+		Integer size = bufferSizes.get(buffer);
+		if (size == null)
+			throw new IllegalArgumentException("Buffer does not come from the pool");
+		List<Pointer> list = buffers.get(size);
+		if (list == null) {
+			list = new ArrayList<Pointer>();
+			buffers.put(size, list);
+		}
+		if (list.size() < MAX_POOLED)
+			list.add(buffer);
+		else {
+			bufferSizes.remove(buffer);
+			FFMPEG.avUtil.av_free(buffer);
+			liveBuffers--;
+			liveBufferBytes -= size.intValue();
+		}
+	}
+
+	/**
+	 * Frees everything that is pooled.
+	 */
+	public static synchronized void clear() {
+		for (List<AVFrame> list : frames.values())
+			for (AVFrame frame : list)
+				free(frame);
+		frames.clear();
+		pooledFrames = 0;
+		livePackets -= packets.size();
+		packets.clear();
+		for (List<Pointer> list : buffers.values())
+			for (Pointer buffer : list) {
+				liveBufferBytes -= bufferSizes.remove(buffer).intValue();
+				FFMPEG.avUtil.av_free(buffer);
+				liveBuffers--;
+			}
+		buffers.clear();
+	}
+
+	/**
+	 * Returns the number of allocated frames (in use or pooled).
+	 */
+	public static synchronized int getLiveFrames() {
+		return liveFrames;
+	}
+
+	public static synchronized int getPooledFrames() {
+		return pooledFrames;
+	}
+
+	/**
+	 * Returns the number of bytes held by the picture buffers of allocated
+	 * frames.
+	 */
+	public static synchronized long getLivePictureBytes() {
+		return livePictureBytes;
+	}
+
+	public static synchronized int getLivePackets() {
+		return livePackets;
+	}
+
+	public static synchronized int getLiveBuffers() {
+		return liveBuffers;
+	}
+
+	public static synchronized long getLiveBufferBytes() {
+		return liveBufferBytes;
+	}
+
+	public static synchronized String getStatistics() {
+		return "frames: " + liveFrames + " (" + pooledFrames + " pooled, "
+			+ livePictureBytes + " picture bytes), packets: " + livePackets
+			+ ", buffers: " + liveBuffers + " (" + liveBufferBytes + " bytes)";
+	}
+}
@@ -0,0 +1,133 @@
+package fiji.ffmpeg;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import fiji.ffmpeg.AVFORMAT.AVStream;
+
+/**
+ * Reads the frames of a movie sequentially, in constant memory.
+ *
+ * The frames are decoded and converted according to the settings of the
+ * given {@link IO} instance (colour mode, crop, scale and stride). The
+ * same {@link VideoFrame}, with the same pixel buffer, is returned for every
+ * frame. Reading can stop at any time; {@link #close()} releases the
+ * decoder, as does garbage collecting the reader.
+ */
+public class FrameReader implements Closeable, Iterator<VideoFrame> {
+	protected IO io;
+	protected int videoStream;
+	protected VideoFrame current;
+	protected boolean pending, finished;
+	protected int frameNumber;
+	protected NativeCleaner.Cleanable cleanable;
+
+	public FrameReader(String path) throws IOException {
+		this(new IO(), path);
+	}
+
+	public FrameReader(IO io, String path) throws IOException {
+		this.io = io;
+		try {
+			videoStream = io.openInput(path);
+			io.allocateFrames(false);
+		} catch (IOException e) {
+			io.free();
+			throw e;
+		} catch (RuntimeException e) {
+			io.free();
+			throw e;
+		}
+		AVStream stream = new AVStream(io.formatContext.streams[videoStream]);
+		current = new VideoFrame(io, stream.time_base.num / (double)stream.time_base.den);
+		cleanable = NativeCleaner.register(this, new Closer(io));
+	}
+
+	// must not refer to the reader
+	protected static class Closer implements Runnable {
+		protected IO io;
+
+		protected Closer(IO io) {
+			this.io = io;
+		}
+
+		@Override
+		public void run() {
+			io.free();
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (!pending && !finished)
+			pending = decodeNext();
+		return pending;
+	}
+
+	/**
+	 * Returns the next frame; the previous frame returned by this reader is
+	 * overwritten.
+	 */
+	@Override
+	public VideoFrame next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		pending = false;
+		current.processor = io.convertFrame(current.processor);
+		current.pts = io.frame.reordered_opaque;
+		current.keyFrame = io.frame.read_key_frame() != 0;
+		current.index = frameNumber - 1;
+		return current;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Decodes up to the next frame to return, without converting it.
+	 */
+	protected boolean decodeNext() {
+		while (!finished) {
+			boolean eof = io.readPacket() < 0;
+			if (eof) {
+				io.packet.write_data(null);
+				io.packet.write_size(0);
+				io.codecContext.write_reordered_opaque(IO.AV_NOPTS_VALUE);
+			}
+			else if (io.packet.read_stream_index() != videoStream) {
+				FFMPEG.av_free_packet(io.packet);
+				continue;
+			}
+			else {
+				long pts = io.packet.read_pts();
+				io.codecContext.write_reordered_opaque(pts != IO.AV_NOPTS_VALUE ?
+					pts : io.packet.read_dts());
+			}
+
+			boolean got = io.decodeFrame(io.packet);
+			if (!eof)
+				FFMPEG.av_free_packet(io.packet);
+			if (got) {
+				if (io.isWanted(frameNumber++, 0))
+					return true;
+			}
+			else if (eof)
+				finished = true;
+		}
+		return false;
+	}
+
+	/**
+	 * Stops reading and releases the decoder.
+	 */
+	@Override
+	public void close() {
+		finished = true;
+		pending = false;
+		cleanable.clean();
+	}
+}
@@ -2,9 +2,12 @@
 
 import ij.IJ;
 
-public class IJProgress implements Progress {
+public class IJProgress implements ThroughputProgress {
+	protected String title = "";
+
 	@Override
 	public void start(String message) {
+		title = message;
 		IJ.showStatus(message);
 	}
 
@@ -15,6 +18,12 @@ public void step(String message, double progress) {
 		IJ.showProgress(progress);
 	}
 
+	@Override
+	public void step(String message, double progress, Throughput throughput) {
+		IJ.showStatus((message != null ? message : title) + ": " + throughput);
+		IJ.showProgress(progress);
+	}
+
 	@Override
 	public void done(String message) {
 		IJ.showProgress(1, 1);
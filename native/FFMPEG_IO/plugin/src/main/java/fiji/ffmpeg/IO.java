@@ -3,18 +3,27 @@
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.VirtualStack;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 
+import java.awt.Rectangle;
+
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import com.sun.jna.Library;
-import com.sun.jna.Memory;
 import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
 import com.sun.jna.ptr.IntByReference;
 import com.sun.jna.ptr.PointerByReference;
 
@@ -24,23 +33,70 @@
 import fiji.ffmpeg.AVCODEC.AVPacket;
 import fiji.ffmpeg.AVCODEC.AVPicture;
 import fiji.ffmpeg.AVFORMAT.AVFormatContext;
+import fiji.ffmpeg.AVFORMAT.AVInputFormat;
 import fiji.ffmpeg.AVFORMAT.AVOutputFormat;
 import fiji.ffmpeg.AVFORMAT.AVStream;
 
-import fiji.ffmpeg.AVLOG.AvLog;
 
-public class IO extends FFMPEG implements Progress {
+public class IO extends FFMPEG implements Closeable, Progress {
+	public final static long AV_NOPTS_VALUE = 0x8000000000000000l;
+	// the unit of AVFormatContext.duration (microseconds)
+	protected final static int AV_TIME_BASE = 1000000;
+	// see AVCodecContext.thread_type; not defined by all ffmpeg revisions
+	public final static int FF_THREAD_FRAME = 1, FF_THREAD_SLICE = 2;
+	// MPV_common_init() refuses more threads than this (and more than macroblock rows)
+	protected final static int MAX_CODEC_THREADS = 16;
+	/**
+	 * Colour modes: convert to RGB (or gray) with swscale, copy the Y plane
+	 * only, or copy the Y, U and V planes as channels of a hyperstack. The
+	 * latter two apply to planar YUV movies only.
+	 */
+	public final static int COLOR_RGB = 0, COLOR_LUMA = 1, COLOR_YUV = 2;
+	// 16-bit gray in the native byte order, so that rows can be copied as short[]
+	protected final static boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+	protected final static int PIX_FMT_GRAY16_NATIVE =
+		LITTLE_ENDIAN ? AVUTIL.PIX_FMT_GRAY16LE : AVUTIL.PIX_FMT_GRAY16BE;
+
 	protected AVFormatContext formatContext;
 	protected AVCodecContext codecContext;
 	protected AVCodec codec;
+	protected boolean codecOpen;
 	protected IntByReference gotPicture = new IntByReference();
 	protected int bufferFramePixelFormat = AVUTIL.PIX_FMT_RGB24;
-	protected AVFrame frame, bufferFrame;
+	protected AVFrame frame, bufferFrame, codedFrame;
 	protected Pointer swsContext;
-	protected byte[] videoOutbut;
-	protected Memory videoOutbutMemory;
-	protected AVPacket packet = new AVPacket();
+	protected Pointer videoOutbutMemory;
+	protected int videoOutbutSize;
+	protected byte[] rowBuffer;
+	protected AVPacket packet;
 	protected Progress progress;
+	// wraps progress; replaced when a subclass assigns the field directly
+	protected volatile RateLimitedProgress rateLimitedProgress;
+	// the compressed bytes read or written since start(), for the throughput
+	protected long bytesProcessed;
+	// the time spent in each stage, or null if not measured
+	protected StageMetrics metrics = StageMetrics.fromSystemProperties();
+	protected boolean useFrameIndex = true;
+	protected long frameCacheSize = -1;
+	protected int readAheadFrames = 4;
+	protected int importThreads = 1;
+	protected int exportThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+	protected int stride = 1;
+	protected int threadCount = Runtime.getRuntime().availableProcessors();
+	protected int threadType = FF_THREAD_FRAME | FF_THREAD_SLICE;
+	protected int colorMode = COLOR_RGB;
+	protected boolean bypassSwscale;
+	// whether 8-bit gray is copied into the luma plane when encoding
+	protected boolean lumaPassthrough;
+	// the intensity range packed into the buffer when it has fewer bits than the pixels
+	protected boolean scalePixels;
+	protected double rangeMin = Double.NaN, rangeMax = Double.NaN;
+	protected Rectangle crop;
+	protected double scale = 1;
+	// the decoded region and the size of the slices; see initOutputGeometry()
+	protected int cropX, cropY, cropWidth, cropHeight, outputWidth, outputHeight;
+	protected boolean cropInJava;
+	protected Pointer[] croppedPlanes = new Pointer[4];
 
 	public interface C extends Library {
 		int snprintf(Pointer buffer, Long size, String fmt, Pointer va_list);
@@ -48,17 +104,77 @@ public interface C extends Library {
 
 	protected C C;
 
+	// the AVOption API of libavcodec (opt.h), which AVCODEC does not cover
+	public interface AVOPT extends Library {
+		int av_set_string3(Pointer obj, String name, String val, int alloc, Pointer o_out);
+	}
+
+	protected static AVOPT avOpt;
+	// avcodec_open() and avcodec_close() must not run concurrently, as no lock manager is registered
+	protected final static Object CODEC_LOCK = new Object();
+	// the options handled by openOutput() itself rather than as AVOptions
+	protected final static Set<String> OUTPUT_OPTIONS = new HashSet<String>(Arrays.asList(
+		MovieWriter.FRAME_RATE, MovieWriter.BIT_RATE, MovieWriter.CODEC, MovieWriter.PIXEL_FORMAT,
+		MovieWriter.GRAY, MovieWriter.GOP_SIZE, MovieWriter.B_FRAMES, MovieWriter.QSCALE,
+		MovieWriter.RANGE_MIN, MovieWriter.RANGE_MAX, MovieWriter.SATURATED));
+
 	public IO() throws IOException {
 		super();
 		if (!loadFFMPEG())
 			throw new IOException("Could not load the FFMPEG library!");
 
-		avLog.avSetLogCallback(new AvLog() {
-			@Override
-			public void callback(String line) {
-				IJ.log(line);
-			}
-		});
+		// the first call into the (lazily loaded) libraries
+		try {
+			NativeLog.getInstance();
+		} catch (UnsatisfiedLinkError e) {
+			showException(e);
+			throw new IOException("Could not load the FFMPEG library!");
+		} catch (RuntimeException e) {
+			showException(e);
+			throw new IOException("Could not load the FFMPEG library!");
+		}
+	}
+
+	/**
+	 * Reads the metadata of a movie's first video stream, without opening a
+	 * decoder; only avformat and avutil are called, although the other
+	 * libraries are still preloaded in the background.
+	 */
+	public static MovieInfo probe(String path) throws IOException {
+		if (!new FFMPEG().loadFFMPEG())
+			throw new IOException("Could not load the FFMPEG library!");
+		AVFormatContext context = openFormatContext(path);
+		try {
+			if (avFormat.av_find_stream_info(context) < 0)
+				throw new IOException("No stream in " + path);
+			context.read();
+			int videoStream = findVideoStream(context);
+			if (videoStream < 0)
+				throw new IOException("No video stream in " + path);
+			AVStream stream = new AVStream(context.streams[videoStream]);
+			AVCodecContext codecContext = new AVCodecContext(stream.codec);
+
+			MovieInfo result = new MovieInfo();
+			AVInputFormat format = new AVInputFormat(context.iformat);
+			result.format = format.name;
+			result.formatDescription = format.long_name;
+			result.codecId = codecContext.codec_id;
+			result.width = codecContext.width;
+			result.height = codecContext.height;
+			result.pixelFormat = codecContext.pix_fmt;
+			result.bitRate = context.bit_rate;
+			if (stream.r_frame_rate.den > 0)
+				result.frameRate = stream.r_frame_rate.num / (double)stream.r_frame_rate.den;
+			if (stream.duration != AV_NOPTS_VALUE)
+				result.duration = stream.duration * stream.time_base.num / (double)stream.time_base.den;
+			else if (context.duration != AV_NOPTS_VALUE)
+				result.duration = context.duration / (double)AV_TIME_BASE;
+			result.frameCount = stream.nb_frames > 0 ? stream.nb_frames :
+				Math.round(result.duration * result.frameRate);
+			return result;
+		} finally {
+			avFormat.av_close_input_file(context);
+		}
 	}
 
 	public IO(Progress progress) throws IOException {
@@ -66,24 +182,69 @@ public IO(Progress progress) throws IOException {
 		setProgress(progress);
 	}
 
+	/**
+	 * Sets where the progress is reported to; the updates are rate-limited
+	 * (see {@link RateLimitedProgress}).
+	 */
 	public void setProgress(Progress progress) {
 		this.progress = progress;
 	}
 
+	protected RateLimitedProgress getRateLimitedProgress() {
+		Progress progress = this.progress;
+		if (progress == null)
+			return null;
+		RateLimitedProgress result = rateLimitedProgress;
+		if (result == null || (result != progress && result.getDelegate() != progress)) {
+			result = progress instanceof RateLimitedProgress ?
+				(RateLimitedProgress)progress : new RateLimitedProgress(progress);
+			rateLimitedProgress = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Sets where the time spent in each stage of decoding and encoding is
+	 * counted; null (the default, unless the system property
+	 * <i>fiji.ffmpeg.metrics</i> is set) measures nothing.
+	 */
+	public void setMetrics(StageMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public StageMetrics getMetrics() {
+		return metrics;
+	}
+
 	@Override
 	public void start(String message) {
+		bytesProcessed = 0;
+		RateLimitedProgress progress = getRateLimitedProgress();
 		if (progress != null)
 			progress.start(message);
 	}
 
 	@Override
 	public void step(String message, @SuppressWarnings("hiding") double progress) {
-		if (this.progress != null)
-			this.progress.step(message, progress);
+		RateLimitedProgress rateLimited = getRateLimitedProgress();
+		if (rateLimited != null)
+			rateLimited.step(message, progress);
+	}
+
+	/**
+	 * Reports the progress with the number of frames done, the total (-1
+	 * if unknown) and the compressed bytes read or written so far.
+	 */
+	public void step(String message, @SuppressWarnings("hiding") double progress,
+			long framesDone, long framesTotal, long bytes) {
+		RateLimitedProgress rateLimited = getRateLimitedProgress();
+		if (rateLimited != null)
+			rateLimited.step(message, progress, framesDone, framesTotal, bytes);
 	}
 
 	@Override
 	public void done(String message) {
+		RateLimitedProgress progress = getRateLimitedProgress();
 		if (progress != null)
 			progress.done(message);
 	}
@@ -95,9 +256,133 @@ public void log(String message) {
 	}
 
 	/**
-	 * Based on the AVCodecSample example from ffmpeg-java by Ken Larson.
+	 * Whether random access in virtual stacks should use a {@link FrameIndex}.
+	 */
+	public void setUseFrameIndex(boolean useFrameIndex) {
+		this.useFrameIndex = useFrameIndex;
+	}
+
+	/**
+	 * Sets the memory budget (in bytes) for caching decoded frames of virtual
+	 * stacks; 0 disables the cache, a negative value uses the default of an
+	 * eighth of ImageJ's maximum memory.
+	 */
+	public void setFrameCacheSize(long bytes) {
+		frameCacheSize = bytes;
+	}
+
+	/**
+	 * Sets how many frames virtual stacks decode ahead on a background
+	 * thread when the slices are accessed sequentially; 0 disables it.
+	 */
+	public void setReadAheadFrames(int frames) {
+		readAheadFrames = frames;
+	}
+
+	/**
+	 * Sets the number of threads decoding a movie that is not opened as a
+	 * virtual stack; with more than one thread, the movie is indexed and
+	 * split into segments at keyframes, which are decoded independently.
+	 * Unless the index was saved by an earlier import, this costs an extra
+	 * pass over the file; the default is 1.
+	 */
+	public void setImportThreads(int threads) {
+		importThreads = threads;
+	}
+
+	/**
+	 * Sets the number of threads fetching, packing and converting the slices
+	 * while a movie is written (see {@link EncodePipeline}); with 0, the
+	 * encoding thread does everything.
+	 */
+	public void setExportThreads(int threads) {
+		exportThreads = threads;
+	}
+
+	/**
+	 * Imports only every n-th frame, starting with the first one; the frames
+	 * in between are not converted, and not decoded at all if possible.
+	 */
+	public void setStride(int stride) {
+		this.stride = Math.max(1, stride);
+	}
+
+	/**
+	 * Sets the number of threads libavcodec may use for decoding and
+	 * encoding (default: the number of available processors); at most 16
+	 * threads, and one per row of macroblocks, are used.
+	 */
+	public void setThreadCount(int threads) {
+		threadCount = threads;
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * Sets libavcodec's threading type (a combination of
+	 * {@link #FF_THREAD_FRAME} and {@link #FF_THREAD_SLICE}); it is ignored
+	 * by ffmpeg revisions predating frame threading.
+	 */
+	public void setThreadType(int type) {
+		threadType = type;
+	}
+
+	/**
+	 * Sets how decoded frames are converted (see {@link #COLOR_RGB},
+	 * {@link #COLOR_LUMA} and {@link #COLOR_YUV}).
+	 */
+	public void setColorMode(int mode) {
+		colorMode = mode;
+	}
+
+	/**
+	 * Restricts decoding to a region of the frames; null decodes the full
+	 * frames. The region is extended to the chroma subsampling grid, if needed.
+	 */
+	public void setCrop(Rectangle crop) {
+		this.crop = crop;
+	}
+
+	/**
+	 * Sets the factor by which the (cropped) frames are scaled while they are
+	 * converted, e.g. 0.25 for quarter-size proxies.
+	 */
+	public void setScale(double scale) {
+		this.scale = scale;
+	}
+
+	/**
+	 * Copies the settings determining what decoded frames look like.
 	 */
+	protected void copyDecodeSettings(IO other) {
+		colorMode = other.colorMode;
+		crop = other.crop;
+		scale = other.scale;
+	}
+
 	public ImagePlus readMovie(String path, boolean useVirtualStack, final int first, final int last) throws IOException {
+		return readMovie(path, useVirtualStack, first, last, stride, crop, scale);
+	}
+
+	public ImagePlus readMovie(String path, boolean useVirtualStack, final int first, final int last,
+			Rectangle crop, double scale) throws IOException {
+		return readMovie(path, useVirtualStack, first, last, stride, crop, scale);
+	}
+
+	/**
+	 * Based on the AVCodecSample example from ffmpeg-java by Ken Larson.
+	 *
+	 * @param stride import every stride-th frame only
+	 * @param crop the region to decode, or null for the full frames
+	 * @param scale the factor by which the region is scaled
+	 */
+	public ImagePlus readMovie(String path, boolean useVirtualStack, final int first, final int last,
+			int stride, Rectangle crop, double scale) throws IOException {
+		setStride(stride);
+		setCrop(crop);
+		setScale(scale);
 		/* Need to do this because we already extend ImagePlus */
 		if (!loadFFMPEG())
 			throw new IOException("Could not load the FFMPEG library!");
@@ -107,233 +392,664 @@ public ImagePlus readMovie(String path, boolean useVirtualStack, final int first
 					+ " != Java-bindings " + AVCODEC.LIBAVCODEC_VERSION_INT);
 
 		step("Opening " + path, 0);
-		avFormat.av_register_all();
+		try {
+			return readMovie(path, useVirtualStack, first, last, openInput(path));
+		} catch (IOException e) {
+			free();
+			throw e;
+		} catch (RuntimeException e) {
+			free();
+			throw e;
+		}
+	}
 
-		// Open video file
-		final PointerByReference formatContextPointer = new PointerByReference();
-		if (avFormat.av_open_input_file(formatContextPointer, path, null, 0, null) != 0)
-			throw new IOException("Could not open " + path);
-		formatContext = new AVFormatContext(formatContextPointer.getValue());
+	protected ImagePlus readMovie(String path, boolean useVirtualStack, final int first, final int last,
+			int videoStream) throws IOException {
+		allocateFrames(false);
+
+		final AVStream stream = new AVStream(formatContext.streams[videoStream]);
+		if (useVirtualStack) {
+			// without a valid sidecar index, the frames are counted (and indexed) in the background
+			FrameIndex index = useFrameIndex ? FrameIndex.load(new File(path), videoStream) : null;
+			MovieStack stack = new MovieStack(this, stream, index, first, last);
+			if (index == null)
+				stack.startCounting(path, useFrameIndex);
+			done("Opened " + path + " as virtual stack");
+			return createImage(path, stack);
+		}
+
+		// with an index, frames that are not imported can be skipped
+		if (importThreads > 1 || (useFrameIndex && (first > 0 || this.stride > 1))) {
+			FrameIndex index = getFrameIndex(path, videoStream);
+			if (index != null) {
+				start("Reading " + path);
+				ImageStack stack = importThreads > 1 ?
+					new ParallelImport(this, path, index).read(first, last, this.stride, importThreads) :
+					readFrames(index, videoStream, first, last);
+				free();
+				done("Opened " + path);
+				return createImage(path, stack);
+			}
+		}
+
+		double factor = stream.duration > 0 ? 1.0 / stream.duration : 0;
+		// the frames from first up to, and including, last
+		final int begin = Math.max(0, first);
+		final long framesTotal = last >= 0 ? Math.max(0, last - begin + 1) : -1;
+		if (framesTotal > 0)
+			factor = 1.0 / framesTotal;
+		ImageStack stack = new ImageStack(outputWidth, outputHeight);
+		int frameCounter = 0;
+		start("Reading " + path);
+		while (readPacket() >= 0 &&
+				(last < 0 || frameCounter < last)) {
+			// Is this a packet from the video stream?
+			if (packet.read_stream_index() != videoStream) {
+				av_free_packet(packet);
+				continue;
+			}
+
+			int framesDone = Math.max(0, frameCounter - begin);
+			step(null, framesDone * factor, framesDone, framesTotal, bytesProcessed);
+			boolean got = decodeFrame(packet);
+			av_free_packet(packet);
+			if (got && isWanted(frameCounter++, first))
+				addFrame(stack, convertFrame());
+		}
+
+		// Read the last frame
+		packet.write_data(null);
+		packet.write_size(0);
+		if (decodeFrame(packet) && isWanted(frameCounter, first))
+			addFrame(stack, convertFrame());
+
+		free();
+
+		done("Opened " + path);
+		return createImage(path, stack);
+	}
+
+	/**
+	 * Hands the frames of a movie to a callback, one after another, without
+	 * keeping them in memory (see {@link FrameReader}).
+	 *
+	 * @return the number of frames passed to the callback
+	 */
+	public int readMovie(String path, FrameCallback callback) throws IOException {
+		FrameReader reader = new FrameReader(this, path);
+		try {
+			int count = 0;
+			while (reader.hasNext()) {
+				count++;
+				if (!callback.frameDecoded(reader.next()))
+					break;
+			}
+			return count;
+		} finally {
+			reader.close();
+		}
+	}
+
+	protected boolean isWanted(int frameNumber, int first) {
+		return frameNumber >= first && (frameNumber - first) % stride == 0;
+	}
+
+	/**
+	 * Reads the frames (0-based, in presentation order) from first to last
+	 * (exclusive; -1 means the end of the movie), skipping to the next
+	 * keyframe where possible.
+	 */
+	protected ImageStack readFrames(FrameIndex index, int videoStream, int first, int last) {
+		ImageStack stack = new ImageStack(outputWidth, outputHeight);
+		int begin = Math.max(0, first);
+		int end = index.getFrameCount();
+		if (last >= 0)
+			end = Math.min(last, end);
+		double factor = end > begin ? 1.0 / (end - begin) : 0;
+		for (int frameNumber = begin, previous = -1; frameNumber < end; frameNumber += stride) {
+			if (needsSeek(index, previous, frameNumber))
+				seekToPacket(index, index.getSeekPoint(frameNumber));
+			ImageProcessor ip = readFrame(videoStream, index.getFrameKey(frameNumber));
+			if (ip == null)
+				break;
+			addFrame(stack, ip);
+			previous = frameNumber;
+			step(null, (frameNumber - begin) * factor, stack.getSize(),
+				(end - begin + stride - 1) / stride, bytesProcessed);
+		}
+		return stack;
+	}
+
+	/**
+	 * Returns whether the decoder has to seek to get to a frame after
+	 * decoding the previous frame (0-based, in presentation order; -1 if
+	 * nothing was decoded yet), i.e. whether there is a keyframe in between
+	 * from which decoding can start.
+	 */
+	protected static boolean needsSeek(FrameIndex index, int previousFrame, int frame) {
+		return previousFrame < 0 || frame <= previousFrame ||
+			index.getSeekPoint(frame) > index.getDecodeIndex(previousFrame);
+	}
+
+	protected ImagePlus createImage(String path, ImageStack stack) {
+		ImagePlus image = new ImagePlus(path, stack);
+		int channels = getChannelCount();
+		if (channels > 1) {
+			image.setDimensions(channels, 1, stack.getSize() / channels);
+			image.setOpenAsHyperStack(true);
+		}
+		return image;
+	}
+
+	/**
+	 * Adds a decoded frame to a stack, as one slice per channel.
+	 */
+	protected void addFrame(ImageStack stack, ImageProcessor ip) {
+		long start = metrics == null ? 0 : metrics.start();
+		int channels = getChannelCount();
+		if (channels == 1)
+			stack.addSlice(null, ip);
+		else
+			for (int c = 0; c < channels; c++)
+				stack.addSlice(null, getChannel(ip, c));
+		if (metrics != null)
+			metrics.record(StageMetrics.ADD, start);
+	}
+
+	/**
+	 * Opens a movie file for decoding.
+	 *
+	 * @return the index of the first video stream
+	 */
+	protected int openInput(String path) throws IOException {
+		formatContext = openFormatContext(path);
 
 		// Retrieve stream information
 		if (avFormat.av_find_stream_info(formatContext) < 0)
 			throw new IOException("No stream in " + path);
+		formatContext.read();
 
 		// Find the first video stream
-		int videoStream = -1;
-		for (int i = 0; i < formatContext.nb_streams; i++) {
-			final AVStream stream = new AVStream(formatContext.streams[i]);
-			codecContext = new AVCodecContext(stream.codec);
-			if (codecContext.codec_type == AVCODEC.CODEC_TYPE_VIDEO) {
-				videoStream = i;
-				break;
-			}
-		}
-		if (codecContext == null)
+		int videoStream = findVideoStream(formatContext);
+		if (videoStream < 0)
 			throw new IOException("No video stream in " + path);
+		final AVStream stream = new AVStream(formatContext.streams[videoStream]);
+		codecContext = new AVCodecContext(stream.codec);
 
 		if (codecContext.codec_id == 0)
 			throw new IOException("Codec not available");
 
 		// Find and open the decoder for the video stream
 		codec = avCodec.avcodec_find_decoder(codecContext.codec_id);
-		if (codec == null || avCodec.avcodec_open(codecContext, codec) < 0)
+		if (codec == null)
 			throw new IOException("Codec not available");
+		if (!openCodecWithThreads(codec))
+			throw new IOException("Codec not available");
+		codecOpen = true;
 
-		allocateFrames(false);
+		return videoStream;
+	}
 
-		final AVStream stream = new AVStream(formatContext.streams[videoStream]);
-		if (useVirtualStack) {
-			// TODO: handle stream.duration == 0 by counting the frames
-			if (stream.duration == 0)
-				throw new IOException("Cannot determine stack size (duration is 0)");
-			final int videoStreamIndex = videoStream;
-			ImageStack stack = new VirtualStack(codecContext.width, codecContext.height, null, null) {
-				int previousSlice = -1;
-				long frameDuration = guessFrameDuration();
-
-				@Override
-				public void finalize() {
-					free();
-				}
+	protected static AVFormatContext openFormatContext(String path) throws IOException {
+		avFormat.av_register_all();
 
-				@Override
-				public int getSize() {
-					int size = (int)(stream.duration / frameDuration);
-					if (last >= 0)
-						size = Math.min(last, size);
-					if (first > 0)
-						size -= first;
-					return size;
-				}
+		// Open video file
+		final PointerByReference formatContextPointer = new PointerByReference();
+		if (avFormat.av_open_input_file(formatContextPointer, path, null, 0, null) != 0)
+			throw new IOException("Could not open " + path);
+		return new AVFormatContext(formatContextPointer.getValue());
+	}
 
-				@Override
-				public String getSliceLabel(int slice) {
-					return ""; // maybe calculate the time?
-				}
+	protected static int findVideoStream(AVFormatContext context) {
+		for (int i = 0; i < context.nb_streams; i++) {
+			final AVStream stream = new AVStream(context.streams[i]);
+			if (new AVCodecContext(stream.codec).codec_type == AVCODEC.CODEC_TYPE_VIDEO)
+				return i;
+		}
+		return -1;
+	}
 
-				public long guessFrameDuration() {
-					if (avFormat.av_read_frame(formatContext, packet) < 0)
-						return 1;
-					long firstPTS = packet.pts;
-					int frameCount = 5;
-					for (int i = 0; i < frameCount; previousSlice = i++)
-						if (avFormat.av_read_frame(formatContext, packet) < 0)
-							return 1;
-					return (packet.pts - firstPTS) / frameCount;
-				}
+	/**
+	 * Returns the frame index of the given video stream, reading it from
+	 * the sidecar file if it is still valid and scanning the movie otherwise.
+	 *
+	 * @return the index, or null if the movie could not be indexed
+	 */
+	protected FrameIndex getFrameIndex(String path, int videoStream) {
+		File file = new File(path);
+		FrameIndex index = FrameIndex.load(file, videoStream);
+		if (index != null)
+			return index;
+		try {
+			index = scanFrameIndex(path, videoStream);
+		} catch (IOException e) {
+			log("Could not index " + path + ": " + e);
+			return null;
+		}
+		if (index == null || index.getFrameCount() == 0)
+			return null;
+		saveFrameIndex(index, path);
+		return index;
+	}
 
-				// TODO: cache two
-				@Override
-				public ImageProcessor getProcessor(int slice) {
-					long time = (first + slice - 1) * frameDuration;
-					if (time > 0)
-						time -=  frameDuration / 2;
-					if (stream.start_time != 0x8000000000000000l /* TODO: AVUTIL.AV_NOPTS_VALUE */)
-						time += stream.start_time;
-					if (previousSlice != slice - 1)
-						avFormat.av_seek_frame(formatContext, videoStreamIndex, time,
-								AVFORMAT.AVSEEK_FLAG_BACKWARD);
-					for (;;) {
-						if (avFormat.av_read_frame(formatContext, packet) < 0) {
-							packet.data = null;
-							packet.size = 0;
-							break;
-						}
-						if (packet.stream_index != videoStreamIndex)
-							continue;
-						if (previousSlice == slice - 1 || packet.pts >= time)
-							break;
-						avCodec.avcodec_decode_video2(codecContext, frame, gotPicture, packet);
-					}
-					previousSlice = slice;
-					return readOneFrame(packet);
-				}
-			};
-			done("Opened " + path + " as virtual stack");
-			return new ImagePlus(path, stack);
+	protected void saveFrameIndex(FrameIndex index, String path) {
+		try {
+			index.save(new File(path));
+		} catch (IOException e) {
+			log("Could not save frame index: " + e);
 		}
+	}
 
-		double factor = stream.duration > 0 ? 1.0 / stream.duration : 0;
-		if (last >= 0)
-			factor = 1.0 / last;
-		ImageStack stack = new ImageStack(codecContext.width, codecContext.height);
-		int frameCounter = 0;
-		start("Reading " + path);
-		while (avFormat.av_read_frame(formatContext, packet) >= 0 &&
-				(last < 0 || frameCounter < last)) {
-			// Is this a packet from the video stream?
-			if (packet.stream_index != videoStream)
-				continue;
+	/**
+	 * Builds a frame index with one demux-only pass over the movie; no
+	 * packet is decoded.
+	 */
+	protected FrameIndex scanFrameIndex(String path, int videoStream) throws IOException {
+		FrameCounter counter = new FrameCounter(path, videoStream, true);
+		counter.setProgress(this);
+		counter.count();
+		return counter.getIndex();
+	}
 
-			step(null, frameCounter * factor);
-			ImageProcessor ip = readOneFrame(packet);
-			if (ip != null && frameCounter++ >= first)
-				stack.addSlice(null, ip);
-		}
+	/**
+	 * Positions the demuxer on the given packet (in decode order) of an
+	 * index, and discards the decoder's state.
+	 */
+	protected void seekToPacket(FrameIndex index, int decode) {
+		long timestamp = index.getSeekTimestamp(decode);
+		if (timestamp != AV_NOPTS_VALUE)
+			avFormat.av_seek_frame(formatContext, index.getStreamIndex(),
+				timestamp, AVFORMAT.AVSEEK_FLAG_BACKWARD);
+		else
+			avFormat.av_seek_frame(formatContext, index.getStreamIndex(),
+				index.getPosition(decode), AVFORMAT.AVSEEK_FLAG_BYTE);
+		avCodec.avcodec_flush_buffers(codecContext);
+	}
 
-		// Read the last frame
-		packet.data = null;
-		packet.size = 0;
-		ImageProcessor ip = readOneFrame(packet);
-		if (ip != null)
-			stack.addSlice(null, ip);
+	/**
+	 * Guesses the frame duration from the PTS of the first packets.
+	 */
+	protected long guessFrameDuration(int frameCount) {
+		if (readPacket() < 0)
+			return 1;
+		long firstPTS = packet.read_pts();
+		for (int i = 0; i < frameCount; i++) {
+			av_free_packet(packet);
+			if (readPacket() < 0)
+				return 1;
+		}
+		av_free_packet(packet);
+		return (packet.read_pts() - firstPTS) / frameCount;
+	}
 
-		free();
+	/**
+	 * Reads the frame at the given time (in stream time base units); unless
+	 * the frame is the next one, the demuxer seeks to the time first.
+	 */
+	protected ImageProcessor readFrameAt(int videoStream, long time, boolean sequential) {
+		if (!sequential)
+			avFormat.av_seek_frame(formatContext, videoStream, time,
+					AVFORMAT.AVSEEK_FLAG_BACKWARD);
+		boolean eof = false;
+		for (;;) {
+			if (readPacket() < 0) {
+				eof = true;
+				packet.write_data(null);
+				packet.write_size(0);
+				break;
+			}
+			if (packet.read_stream_index() != videoStream) {
+				av_free_packet(packet);
+				continue;
+			}
+			if (sequential || packet.read_pts() >= time)
+				break;
+			avcodec_decode_video2(codecContext, frame, gotPicture, packet);
+			av_free_packet(packet);
+		}
+		ImageProcessor result = readOneFrame(packet);
+		if (!eof)
+			av_free_packet(packet);
+		return result;
+	}
 
-		done("Opened " + path);
-		return new ImagePlus(path, stack);
+	/**
+	 * Decodes frames until the one identified by the given timestamp (see
+	 * {@link FrameIndex#getKey(int)}); earlier frames are not converted, and
+	 * the decoder is asked to skip those that are not referenced by others.
+	 *
+	 * @return the frame, or null if the end of the stream was reached
+	 */
+	protected ImageProcessor readFrame(int videoStream, long key) {
+		for (;;) {
+			boolean eof = readPacket() < 0;
+			long packetKey = AV_NOPTS_VALUE;
+			if (eof) {
+				packet.write_data(null);
+				packet.write_size(0);
+			}
+			else if (packet.read_stream_index() != videoStream) {
+				av_free_packet(packet);
+				continue;
+			}
+			else {
+				packetKey = packet.read_pts();
+				if (packetKey == AV_NOPTS_VALUE)
+					packetKey = packet.read_dts();
+			}
+			codecContext.write_reordered_opaque(packetKey);
+			codecContext.write_skip_frame(packetKey != AV_NOPTS_VALUE && packetKey < key ?
+				AVCODEC.AVDISCARD_NONREF : AVCODEC.AVDISCARD_DEFAULT);
+
+			boolean got = decodeFrame(packet);
+			if (!eof)
+				av_free_packet(packet);
+			if (got) {
+				if (frame.reordered_opaque == AV_NOPTS_VALUE || frame.reordered_opaque >= key)
+					return convertFrame();
+			}
+			else if (eof)
+				return null;
+		}
 	}
 
 	protected void allocateFrames(boolean forEncoding) {
+		if (packet == null)
+			packet = FramePool.getPacket();
+
 		// Allocate video frame
-		if (frame == null) {
-			frame = avCodec.avcodec_alloc_frame();
-			if (frame == null)
-				throw new OutOfMemoryError("Could not allocate frame");
-
-			if (forEncoding) {
-				// Allocate buffer
-				if (avCodec.avpicture_alloc(new AVPicture(frame.getPointer()),
-						codecContext.pix_fmt, codecContext.width, codecContext.height) < 0)
-					throw new OutOfMemoryError("Could not allocate tmp frame");
-				frame.read();
+		if (frame == null)
+			frame = forEncoding ?
+				FramePool.getFrame(codecContext.width, codecContext.height, codecContext.pix_fmt) :
+				FramePool.getFrame();
+
+		int sourceWidth = codecContext.width, sourceHeight = codecContext.height;
+		int targetWidth = sourceWidth, targetHeight = sourceHeight;
+		if (!forEncoding) {
+			initOutputGeometry();
+			if (!cropInJava) {
+				sourceWidth = cropWidth;
+				sourceHeight = cropHeight;
+				targetWidth = outputWidth;
+				targetHeight = outputHeight;
 			}
 		}
 
-		// Allocate an AVFrame structure
+		// Planar YUV can be copied without swscale when no RGB is needed
+		boolean planar = getChromaShift(codecContext.pix_fmt) != null;
+		bypassSwscale = !forEncoding && colorMode != COLOR_RGB && planar &&
+			outputWidth == cropWidth && outputHeight == cropHeight;
+		if (bypassSwscale)
+			return;
+
+		// Allocate an AVFrame structure; when encoding, openOutput() chose the format
 		if (bufferFrame == null) {
-			bufferFramePixelFormat = AVUTIL.PIX_FMT_RGB24;
-			if (codecContext.pix_fmt == AVUTIL.PIX_FMT_GRAY8 ||
-					codecContext.pix_fmt == AVUTIL.PIX_FMT_MONOWHITE ||
-					codecContext.pix_fmt == AVUTIL.PIX_FMT_MONOBLACK ||
-					codecContext.pix_fmt == AVUTIL.PIX_FMT_PAL8)
-				bufferFramePixelFormat = AVUTIL.PIX_FMT_GRAY8;
-			else if (codecContext.pix_fmt == AVUTIL.PIX_FMT_GRAY16BE ||
-					codecContext.pix_fmt == AVUTIL.PIX_FMT_GRAY16LE)
-				bufferFramePixelFormat = AVUTIL.PIX_FMT_GRAY16BE;
-
-			bufferFrame = avCodec.avcodec_alloc_frame();
-			if (bufferFrame == null)
-				throw new RuntimeException("Could not allocate frame");
-
-			// Allocate buffer
-			if (avCodec.avpicture_alloc(new AVPicture(bufferFrame.getPointer()),
-					bufferFramePixelFormat, codecContext.width, codecContext.height) < 0)
-				throw new OutOfMemoryError("Could not allocate tmp frame");
-			bufferFrame.read();
+			if (!forEncoding) {
+				bufferFramePixelFormat = AVUTIL.PIX_FMT_RGB24;
+				if (planar && colorMode == COLOR_LUMA)
+					bufferFramePixelFormat = AVUTIL.PIX_FMT_GRAY8;
+				else if (planar && colorMode == COLOR_YUV)
+					bufferFramePixelFormat = AVUTIL.PIX_FMT_YUV444P;
+				else if (codecContext.pix_fmt == AVUTIL.PIX_FMT_GRAY8 ||
+						codecContext.pix_fmt == AVUTIL.PIX_FMT_MONOWHITE ||
+						codecContext.pix_fmt == AVUTIL.PIX_FMT_MONOBLACK ||
+						codecContext.pix_fmt == AVUTIL.PIX_FMT_PAL8)
+					bufferFramePixelFormat = AVUTIL.PIX_FMT_GRAY8;
+				else if (codecContext.pix_fmt == AVUTIL.PIX_FMT_GRAY16BE ||
+						codecContext.pix_fmt == AVUTIL.PIX_FMT_GRAY16LE)
+					bufferFramePixelFormat = PIX_FMT_GRAY16_NATIVE;
+			}
+
+			bufferFrame = FramePool.getFrame(targetWidth, targetHeight, bufferFramePixelFormat);
 		}
 
 		if (swsContext == null) {
-			swsContext = swScale.sws_getContext(codecContext.width, codecContext.height,
+			// area averaging avoids aliasing when downscaling
+			int flags = targetWidth < sourceWidth || targetHeight < sourceHeight ?
+				SWSCALE.SWS_AREA : SWSCALE.SWS_BICUBIC;
+			swsContext = swScale.sws_getContext(sourceWidth, sourceHeight,
 					forEncoding ? bufferFramePixelFormat : codecContext.pix_fmt,
-					codecContext.width, codecContext.height,
+					targetWidth, targetHeight,
 					forEncoding ? codecContext.pix_fmt : bufferFramePixelFormat,
-					SWSCALE.SWS_BICUBIC, null, null, null);
+					flags, null, null, null);
 			if (swsContext == null)
 				throw new OutOfMemoryError("Could not allocate swscale context");
 		}
 	}
 
+	/**
+	 * Determines the decoded region and the size of the slices from the crop
+	 * and scale settings.
+	 */
+	protected void initOutputGeometry() {
+		Rectangle full = new Rectangle(0, 0, codecContext.width, codecContext.height);
+		Rectangle region = crop == null ? full : crop.intersection(full);
+		if (region.isEmpty())
+			region = full;
+
+		int[] alignment = getCropAlignment(codecContext.pix_fmt);
+		cropInJava = alignment == null && !region.equals(full);
+		if (alignment != null) {
+			int x = region.x - region.x % alignment[0];
+			int y = region.y - region.y % alignment[1];
+			region.width += region.x - x;
+			region.height += region.y - y;
+			region.x = x;
+			region.y = y;
+		}
+		cropX = region.x;
+		cropY = region.y;
+		cropWidth = region.width;
+		cropHeight = region.height;
+		outputWidth = Math.max(1, (int)Math.round(cropWidth * scale));
+		outputHeight = Math.max(1, (int)Math.round(cropHeight * scale));
+	}
+
+	/**
+	 * Returns the granularity in which the planes of a pixel format can be
+	 * cropped by offsetting the plane pointers.
+	 *
+	 * @return the horizontal and vertical granularity, or null if the pixel
+	 * format cannot be cropped that way
+	 */
+	protected static int[] getCropAlignment(int pixelFormat) {
+		int[] shift = getChromaShift(pixelFormat);
+		if (shift != null)
+			return new int[] { 1 << shift[0], 1 << shift[1] };
+		if (pixelFormat == AVUTIL.PIX_FMT_YUYV422 || pixelFormat == AVUTIL.PIX_FMT_UYVY422)
+			return new int[] { 2, 1 };
+		return getBytesPerPixel(pixelFormat) > 0 ? new int[] { 1, 1 } : null;
+	}
+
+	/**
+	 * Returns the bytes per pixel of packed pixel formats.
+	 *
+	 * @return the number of bytes, or 0 if the pixel format is not packed
+	 * or has less than a byte per pixel
+	 */
+	protected static int getBytesPerPixel(int pixelFormat) {
+		switch (pixelFormat) {
+		case AVUTIL.PIX_FMT_GRAY8:
+		case AVUTIL.PIX_FMT_PAL8:
+			return 1;
+		case AVUTIL.PIX_FMT_GRAY16BE:
+		case AVUTIL.PIX_FMT_GRAY16LE:
+		case AVUTIL.PIX_FMT_YUYV422:
+		case AVUTIL.PIX_FMT_UYVY422:
+			return 2;
+		case AVUTIL.PIX_FMT_RGB24:
+		case AVUTIL.PIX_FMT_BGR24:
+			return 3;
+		case AVUTIL.PIX_FMT_ARGB:
+		case AVUTIL.PIX_FMT_RGBA:
+		case AVUTIL.PIX_FMT_ABGR:
+		case AVUTIL.PIX_FMT_BGRA:
+			return 4;
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the planes of a decoded frame, offset to the top-left corner
+	 * of the decoded region.
+	 */
+	protected Pointer[] getCroppedPlanes(@SuppressWarnings("hiding") AVFrame frame) {
+		if (cropInJava || (cropX == 0 && cropY == 0))
+			return frame.data;
+		int[] shift = getChromaShift(codecContext.pix_fmt);
+		for (int p = 0; p < croppedPlanes.length; p++) {
+			Pointer plane = frame.data[p];
+			long offset;
+			if (plane == null)
+				offset = 0;
+			else if (shift != null && (p == 1 || p == 2))
+				offset = (long)(cropY >> shift[1]) * frame.linesize[p] + (cropX >> shift[0]);
+			else if (shift != null || p == 0)
+				offset = (long)cropY * frame.linesize[p] +
+					cropX * (shift != null ? 1 : getBytesPerPixel(codecContext.pix_fmt));
+			else
+				offset = 0; // e.g. the palette
+			croppedPlanes[p] = plane == null || offset == 0 ? plane : plane.share(offset);
+		}
+		return croppedPlanes;
+	}
+
+	/**
+	 * Reads the next packet of any stream into {@link #packet}.
+	 *
+	 * @return a negative value at the end of the file
+	 */
+	protected int readPacket() {
+		if (metrics == null)
+			return av_read_frame(formatContext, packet);
+		long start = metrics.start();
+		int result = av_read_frame(formatContext, packet);
+		metrics.record(StageMetrics.DEMUX, start);
+		return result;
+	}
+
 	protected ImageProcessor readOneFrame(@SuppressWarnings("hiding") AVPacket packet) {
+		long start = metrics == null ? 0 : metrics.start();
+		ImageProcessor result = decodeFrame(packet) ? convertFrame() : null;
+		if (metrics != null)
+			metrics.record(StageMetrics.READ_FRAME, start);
+		return result;
+	}
+
+	protected boolean decodeFrame(@SuppressWarnings("hiding") AVPacket packet) {
 		// Decode video frame
-		avCodec.avcodec_decode_video2(codecContext, frame, gotPicture, packet);
+		bytesProcessed += packet.read_size();
+		long start = metrics == null ? 0 : metrics.start();
+		avcodec_decode_video2(codecContext, frame, gotPicture, packet);
+		if (metrics != null)
+			metrics.record(StageMetrics.DECODE, start);
 
 		// Did we get a video frame?
 		if (gotPicture.getValue() == 0)
-			return null;
+			return false;
+		// the frame is not synchronized automatically; read what convertFrame() needs
+		frame.readField("data");
+		frame.readField("linesize");
+		frame.read_reordered_opaque();
+		return true;
+	}
+
+	protected ImageProcessor convertFrame() {
+		return convertFrame(null);
+	}
+
+	/**
+	 * Converts the decoded frame, reusing the pixels of the given processor
+	 * if it has the right size and type.
+	 */
+	protected ImageProcessor convertFrame(ImageProcessor reuse) {
+		if (bypassSwscale)
+			return planesToSlice(frame, codecContext.pix_fmt, cropX, cropY, outputWidth, outputHeight, reuse);
 
 		// Convert the image from its native format to RGB
 		convertTo();
-		return toSlice(bufferFrame, codecContext.width, codecContext.height);
+		if (bufferFramePixelFormat == AVUTIL.PIX_FMT_YUV444P)
+			return planesToSlice(bufferFrame, bufferFramePixelFormat, 0, 0, outputWidth, outputHeight, reuse);
+		if (!cropInJava)
+			return toSlice(bufferFrame, outputWidth, outputHeight, reuse);
+
+		// swscale cannot crop this pixel format
+		ImageProcessor ip = toSlice(bufferFrame, codecContext.width, codecContext.height, null);
+		ip.setRoi(cropX, cropY, cropWidth, cropHeight);
+		ip = ip.crop();
+		if (outputWidth != cropWidth || outputHeight != cropHeight) {
+			ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+			ip = ip.resize(outputWidth, outputHeight, true);
+		}
+		return ip;
 	}
 
 	protected void convertTo() {
-		swScale.sws_scale(swsContext, frame.data, frame.linesize, 0, codecContext.height, bufferFrame.data, bufferFrame.linesize);
+		long start = metrics == null ? 0 : metrics.start();
+		sws_scale(swsContext, getCroppedPlanes(frame), frame.linesize, 0,
+			cropInJava ? codecContext.height : cropHeight, bufferFrame.data, bufferFrame.linesize);
+		if (metrics != null)
+			metrics.record(StageMetrics.SCALE_IN, start);
 	}
 
 	protected void convertFrom() {
-		swScale.sws_scale(swsContext, bufferFrame.data, bufferFrame.linesize, 0, codecContext.height, frame.data, frame.linesize);
+		long start = metrics == null ? 0 : metrics.start();
+		sws_scale(swsContext, bufferFrame.data, bufferFrame.linesize, 0, codecContext.height, frame.data, frame.linesize);
+		if (metrics != null)
+			metrics.record(StageMetrics.SCALE_OUT, start);
+	}
+
+	/**
+	 * Releases all native resources; the instance can be used to read or
+	 * write another movie afterwards.
+	 */
+	@Override
+	public void close() {
+		free();
 	}
 
 	protected void free() {
 		// Free the RGB image
 		if (bufferFrame != null) {
-			avUtil.av_free(bufferFrame.getPointer());
+			FramePool.release(bufferFrame);
 			bufferFrame = null;
 		}
 
 		// Close the codec
 		if (codecContext != null) {
+			if (codecOpen)
+				closeCodec(codecContext);
+			codecOpen = false;
 			codecContext = null;
 		}
+		lumaPassthrough = false;
+		scalePixels = false;
+		rangeMin = rangeMax = Double.NaN;
+
+		if (frame != null) {
+			FramePool.release(frame);
+			frame = null;
+		}
+
+		if (packet != null) {
+			FramePool.release(packet);
+			packet = null;
+		}
+
+		if (videoOutbutMemory != null) {
+			FramePool.release(videoOutbutMemory);
+			videoOutbutMemory = null;
+		}
 
 		// Close the video file
 		if (formatContext != null) {
-			if (formatContext.iformat != null)
+			if (formatContext.read_iformat() != null)
 				avFormat.av_close_input_file(formatContext);
+			else
+				avUtil.av_free(formatContext.getPointer());
 			formatContext = null;
 		}
+		codedFrame = null;
 
 		if (swsContext != null) {
 			swScale.sws_freeContext(swsContext);
@@ -341,47 +1057,169 @@ protected void free() {
 		}
 	}
 
-	protected ImageProcessor toSlice(@SuppressWarnings("hiding") AVFrame frame, int width, int height) {
-		final int len = height * frame.linesize[0];
-		final byte[] data = frame.data[0].getByteArray(0, len);
+	/**
+	 * Copies a converted frame into a new processor, or into the given one if
+	 * it has the right size and type.
+	 */
+	protected ImageProcessor toSlice(@SuppressWarnings("hiding") AVFrame frame, int width, int height,
+			ImageProcessor reuse) {
+		if (metrics == null)
+			return copyToSlice(frame, width, height, reuse);
+		long start = metrics.start();
+		ImageProcessor result = copyToSlice(frame, width, height, reuse);
+		metrics.record(StageMetrics.PACK, start);
+		return result;
+	}
+
+	protected ImageProcessor copyToSlice(@SuppressWarnings("hiding") AVFrame frame, int width, int height,
+			ImageProcessor reuse) {
+		final Pointer data = frame.data[0];
+		final int stride = frame.linesize[0];
 		if (bufferFramePixelFormat == AVUTIL.PIX_FMT_RGB24) {
-			int[] pixels = new int[width * height];
+			final byte[] row = getRowBuffer(3 * width);
+			boolean reusable = isReusable(reuse, width, height, int[].class);
+			int[] pixels = reusable ? (int[])reuse.getPixels() : new int[width * height];
 			for (int j = 0; j < height; j++) {
-				final int off = j * frame.linesize[0];
-				for (int i = 0; i < width; i++)
-					pixels[i + j * width] =
-						((data[off + 3 * i]) & 0xff) << 16 |
-						((data[off + 3 * i + 1]) & 0xff) << 8 |
-						((data[off + 3 * i + 2]) & 0xff);
+				data.read((long)j * stride, row, 0, 3 * width);
+				for (int i = 0, k = j * width; i < 3 * width; i += 3)
+					pixels[k++] = (row[i] & 0xff) << 16 | (row[i + 1] & 0xff) << 8 | (row[i + 2] & 0xff);
 			}
-			return new ColorProcessor(width, height, pixels);
+			return reusable ? reuse : new ColorProcessor(width, height, pixels);
 		}
-		if (bufferFramePixelFormat == AVUTIL.PIX_FMT_GRAY16BE) {
-			short[] pixels = new short[width * height];
-			for (int j = 0; j < height; j++) {
-				final int off = j * frame.linesize[0];
-				for (int i = 0; i < width; i++)
-					pixels[i + j * width] = (short)
-						(((data[off + 2 * i]) & 0xff) << 8 |
-						((data[off + 2 * i + 1]) & 0xff));
-			}
-			return new ShortProcessor(width, height, pixels, null);
+		if (bufferFramePixelFormat == PIX_FMT_GRAY16_NATIVE) {
+			boolean reusable = isReusable(reuse, width, height, short[].class);
+			short[] pixels = reusable ? (short[])reuse.getPixels() : new short[width * height];
+			if (stride == 2 * width)
+				data.read(0, pixels, 0, pixels.length);
+			else
+				for (int j = 0; j < height; j++)
+					data.read((long)j * stride, pixels, j * width, width);
+			return reusable ? reuse : new ShortProcessor(width, height, pixels, null);
 		}
 		if (bufferFramePixelFormat == AVUTIL.PIX_FMT_GRAY8 ||
 				bufferFramePixelFormat == AVUTIL.PIX_FMT_PAL8) {
-			byte[] pixels = new byte[width * height];
-			for (int j = 0; j < height; j++) {
-				final int off = j * frame.linesize[0];
-				for (int i = 0; i < width; i++)
-					pixels[i + j * width] = (byte)
-						((data[off +  i]) & 0xff);
-			}
+			boolean reusable = isReusable(reuse, width, height, byte[].class);
+			byte[] pixels = reusable ? (byte[])reuse.getPixels() : new byte[width * height];
+			if (stride == width)
+				data.read(0, pixels, 0, pixels.length);
+			else
+				for (int j = 0; j < height; j++)
+					data.read((long)j * stride, pixels, j * width, width);
 			/* TODO: in case of PAL8, we should get a colormap */
-			return new ByteProcessor(width, height, pixels, null);
+			return reusable ? reuse : new ByteProcessor(width, height, pixels, null);
 		}
 		throw new RuntimeException("Unhandled pixel format: " + bufferFramePixelFormat);
 	}
 
+	protected static boolean isReusable(ImageProcessor ip, int width, int height, Class<?> pixelType) {
+		return ip != null && ip.getWidth() == width && ip.getHeight() == height &&
+			pixelType.isInstance(ip.getPixels());
+	}
+
+	/**
+	 * Returns the horizontal and vertical chroma subsampling (as shifts) of
+	 * planar 8-bit YUV pixel formats.
+	 *
+	 * @return the shifts, or null if the pixel format is not planar 8-bit YUV
+	 */
+	protected static int[] getChromaShift(int pixelFormat) {
+		switch (pixelFormat) {
+		case AVUTIL.PIX_FMT_YUV420P:
+		case AVUTIL.PIX_FMT_YUVJ420P:
+			return new int[] { 1, 1 };
+		case AVUTIL.PIX_FMT_YUV422P:
+		case AVUTIL.PIX_FMT_YUVJ422P:
+			return new int[] { 1, 0 };
+		case AVUTIL.PIX_FMT_YUV444P:
+		case AVUTIL.PIX_FMT_YUVJ444P:
+			return new int[] { 0, 0 };
+		case AVUTIL.PIX_FMT_YUV440P:
+		case AVUTIL.PIX_FMT_YUVJ440P:
+			return new int[] { 0, 1 };
+		case AVUTIL.PIX_FMT_YUV410P:
+			return new int[] { 2, 2 };
+		case AVUTIL.PIX_FMT_YUV411P:
+			return new int[] { 2, 0 };
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of channels (slices) per decoded frame.
+	 */
+	public int getChannelCount() {
+		return colorMode == COLOR_YUV && (bypassSwscale ||
+			bufferFramePixelFormat == AVUTIL.PIX_FMT_YUV444P) ? 3 : 1;
+	}
+
+	/**
+	 * Copies the planes of a planar YUV frame without colour conversion.
+	 *
+	 * In {@link #COLOR_LUMA} mode, only the Y plane is copied; in
+	 * {@link #COLOR_YUV} mode, the Y, U and V planes are stacked vertically
+	 * (with the chroma upsampled to full size); see {@link #getChannel}.
+	 *
+	 * The region starting at (x, y) is copied; x and y must be aligned to
+	 * the chroma subsampling.
+	 */
+	protected ImageProcessor planesToSlice(@SuppressWarnings("hiding") AVFrame frame, int pixelFormat,
+			int x, int y, int width, int height, ImageProcessor reuse) {
+		long start = metrics == null ? 0 : metrics.start();
+		int channels = getChannelCount();
+		boolean reusable = isReusable(reuse, width, channels * height, byte[].class);
+		byte[] pixels = reusable ? (byte[])reuse.getPixels() : new byte[channels * width * height];
+		Pointer luma = frame.data[0];
+		int stride = frame.linesize[0];
+		long origin = (long)y * stride + x;
+		if (stride == width)
+			luma.read(origin, pixels, 0, width * height);
+		else
+			for (int j = 0; j < height; j++)
+				luma.read(origin + (long)j * stride, pixels, j * width, width);
+
+		if (channels > 1) {
+			int[] shift = getChromaShift(pixelFormat);
+			int chromaWidth = -((-width) >> shift[0]);
+			byte[] row = getRowBuffer(chromaWidth);
+			for (int c = 1; c < 3; c++) {
+				Pointer chroma = frame.data[c];
+				int chromaStride = frame.linesize[c];
+				int offset = c * width * height;
+				for (int j = 0; j < height; j++, offset += width) {
+					chroma.read((long)((y + j) >> shift[1]) * chromaStride + (x >> shift[0]),
+						row, 0, chromaWidth);
+					for (int i = 0; i < width; i++)
+						pixels[offset + i] = row[i >> shift[0]];
+				}
+			}
+		}
+		if (metrics != null)
+			metrics.record(StageMetrics.PACK, start);
+		return reusable ? reuse : new ByteProcessor(width, channels * height, pixels, null);
+	}
+
+	/**
+	 * Extracts one channel of a decoded frame (see {@link #planesToSlice}).
+	 */
+	protected ImageProcessor getChannel(ImageProcessor ip, int channel) {
+		int channels = getChannelCount();
+		if (channels == 1)
+			return ip;
+		int width = ip.getWidth(), height = ip.getHeight() / channels;
+		byte[] pixels = new byte[width * height];
+		System.arraycopy((byte[])ip.getPixels(), channel * pixels.length, pixels, 0, pixels.length);
+		return new ByteProcessor(width, height, pixels, null);
+	}
+
+	/**
+	 * Returns a buffer for packing one row of pixels, reused between frames.
+	 */
+	protected byte[] getRowBuffer(int length) {
+		if (rowBuffer == null || rowBuffer.length < length)
+			rowBuffer = new byte[length];
+		return rowBuffer;
+	}
+
 	public static int strncpy(byte[] dst, String src) {
 		int len = Math.min(src.length(), dst.length - 1);
 		System.arraycopy(src.getBytes(), 0, dst, 0, len);
@@ -390,16 +1228,66 @@ public static int strncpy(byte[] dst, String src) {
 	}
 
 	public void writeMovie(ImagePlus image, String path, int frameRate, int bitRate) throws IOException {
-		final int STREAM_PIX_FMT = AVUTIL.PIX_FMT_YUV420P;
+		writeMovie(image, path, getRateOptions(frameRate, bitRate));
+	}
+
+	/**
+	 * Writes a movie with the given encoder options (see
+	 * {@link MovieWriter#open}).
+	 */
+	public void writeMovie(ImagePlus image, String path, Map<String, String> options) throws IOException {
+		ImageStack stack = image.getStack();
+
+		start("Writing " + path);
+		AVStream videoSt = openOutput(path, stack.getWidth(), stack.getHeight(), image.getType(), options);
+		if (scalePixels && Double.isNaN(rangeMin))
+			initRange(image, options);
+
+		// videoPts = (double)videoSt.pts.val * videoSt.time_base.num / videoSt.time_base.den;
+
+		if (exportThreads > 0 && stack.getSize() > 1)
+			new EncodePipeline(this, stack, videoSt, exportThreads).run();
+		else
+			for (int frameCount = 1; frameCount <= stack.getSize(); frameCount++) {
+				/* write video frame */
+				step(null, frameCount / (double)stack.getSize(), frameCount - 1, stack.getSize(), bytesProcessed);
+				writeVideoFrame(stack.getProcessor(frameCount), videoSt);
+			}
+
+		closeOutput(videoSt);
+		done("Wrote " + path);
+	}
+
+	/**
+	 * Opens a movie file for writing frames of the given size and ImageJ
+	 * type (see {@link ImagePlus#getType()}), and writes its header.
+	 *
+	 * @return the video stream
+	 */
+	protected AVStream openOutput(String path, int width, int height, int imageType, int frameRate, int bitRate) throws IOException {
+		return openOutput(path, width, height, imageType, getRateOptions(frameRate, bitRate));
+	}
+
+	protected static Map<String, String> getRateOptions(int frameRate, int bitRate) {
+		Map<String, String> result = new HashMap<String, String>();
+		result.put(MovieWriter.FRAME_RATE, "" + frameRate);
+		result.put(MovieWriter.BIT_RATE, "" + bitRate);
+		return result;
+	}
+
+	/**
+	 * Opens a movie file for writing, with the given encoder options (see
+	 * {@link MovieWriter#open}).
+	 */
+	protected AVStream openOutput(String path, int width, int height, int imageType, Map<String, String> options) throws IOException {
+		if (options == null)
+			options = new HashMap<String, String>();
+		int frameRate = getInt(options, MovieWriter.FRAME_RATE, 25);
+		int bitRate = getInt(options, MovieWriter.BIT_RATE, 400000);
 
 		//int swsFlags = SWScaleLibrary.SWS_BICUBIC;
 		AVOutputFormat fmt = null;
-		int i;
-		ImageStack stack;
 
-		stack = image.getStack();
-
-		start("Writing " + path);
 		/* initialize libavcodec, and register all codecs and formats */
 		avFormat.av_register_all();
 
@@ -420,14 +1308,56 @@ public void writeMovie(ImagePlus image, String path, int frameRate, int bitRate)
 			throw new OutOfMemoryError("Could not allocate format context");
 		formatContext.oformat = fmt.getPointer();
 		strncpy(formatContext.filename, path);
+		formatContext.writeField("oformat");
+		formatContext.writeField("filename");
+
+		/* add the video stream using the requested or the default
+		 * format codec and initialize the codec */
+		AVCodec encoder;
+		String codecName = options.get(MovieWriter.CODEC);
+		if (codecName != null) {
+			encoder = avCodec.avcodec_find_encoder_by_name(codecName);
+			if (encoder == null)
+				throw new IOException("Encoder not available: " + codecName);
+		}
+		else {
+			if (fmt.video_codec == AVCODEC.CODEC_ID_NONE)
+				throw new IOException("Could not determine codec for " + path);
+			encoder = avCodec.avcodec_find_encoder(fmt.video_codec);
+			if (encoder == null)
+				throw new IOException("video codec not found for codec id: " + fmt.video_codec);
+		}
+
+		bufferFramePixelFormat = AVUTIL.PIX_FMT_RGB24;
+		switch (imageType) {
+		case ImagePlus.GRAY8:
+			bufferFramePixelFormat = AVUTIL.PIX_FMT_GRAY8;
+			break;
+		case ImagePlus.GRAY16:
+		case ImagePlus.GRAY32:
+			bufferFramePixelFormat = PIX_FMT_GRAY16_NATIVE;
+			break;
+		}
 
-		/* add the video stream using the default format
-		 * codec and initialize the codec */
-		if (fmt.video_codec == AVCODEC.CODEC_ID_NONE)
-			throw new IOException("Could not determine codec for " + path);
-		AVStream videoSt = addVideoStream(fmt.video_codec, stack.getWidth(), stack.getHeight(), frameRate, bitRate, STREAM_PIX_FMT);
+		int pixelFormat = choosePixelFormat(encoder, options.get(MovieWriter.PIXEL_FORMAT));
+		// without a 16-bit pixel format, the pixels are scaled to 8 bits
+		if (bufferFramePixelFormat == PIX_FMT_GRAY16_NATIVE && pixelFormat != AVUTIL.PIX_FMT_GRAY16BE &&
+				pixelFormat != AVUTIL.PIX_FMT_GRAY16LE) {
+			bufferFramePixelFormat = AVUTIL.PIX_FMT_GRAY8;
+			pixelFormat = choosePixelFormat(encoder, options.get(MovieWriter.PIXEL_FORMAT));
+		}
+		scalePixels = imageType == ImagePlus.GRAY32 ||
+			(imageType == ImagePlus.GRAY16 && bufferFramePixelFormat == AVUTIL.PIX_FMT_GRAY8);
+		rangeMin = getDouble(options, MovieWriter.RANGE_MIN, Double.NaN);
+		rangeMax = getDouble(options, MovieWriter.RANGE_MAX, Double.NaN);
+		if (Double.isNaN(rangeMax))
+			rangeMin = Double.NaN;
+		AVStream videoSt = addVideoStream(encoder.id, width, height, frameRate, bitRate, pixelFormat);
 		if (videoSt == null)
 			throw new IOException("Could not add a video stream");
+		setEncoderOptions(options);
+		lumaPassthrough = "luma".equals(options.get(MovieWriter.GRAY)) &&
+			bufferFramePixelFormat == AVUTIL.PIX_FMT_GRAY8 && getChromaShift(pixelFormat) != null;
 
 		/* set the output parameters (mustbe done even if no
 		 * parameters). */
@@ -436,7 +1366,7 @@ public void writeMovie(ImagePlus image, String path, int frameRate, int bitRate)
 
 		/* now that all the parameters are set, we can open the
 		 * video codec and allocate the necessary encode buffer */
-		openVideo();
+		openVideo(encoder);
 
 		// Dump the format to stderr
 		avFormat.dump_format(formatContext, 0, path, 1);
@@ -448,7 +1378,7 @@ public void writeMovie(ImagePlus image, String path, int frameRate, int bitRate)
 			   as long as they're aligned enough for the architecture, and
 			   they're freed appropriately (such as using av_free for buffers
 			   allocated with av_malloc) */
-			videoOutbut = new byte[200000];
+			videoOutbutSize = getOutputBufferSize();
 		}
 
 		/* open the output file, if needed */
@@ -456,41 +1386,40 @@ public void writeMovie(ImagePlus image, String path, int frameRate, int bitRate)
 			final PointerByReference p = new PointerByReference();
 			if (avFormat.url_fopen(p, path, AVFORMAT.URL_WRONLY) < 0)
 				throw new IOException("Could not open " + path);
-			formatContext.pb = p.getValue();
-		}
-
-		bufferFramePixelFormat = AVUTIL.PIX_FMT_RGB24;
-		switch (image.getType()) {
-		case ImagePlus.GRAY8:
-			bufferFramePixelFormat = AVUTIL.PIX_FMT_PAL8;
-			break;
-		case ImagePlus.GRAY16:
-			bufferFramePixelFormat = AVUTIL.PIX_FMT_GRAY16BE;
-			break;
+			formatContext.write_pb(p.getValue());
 		}
 
 		allocateFrames(true);
+		if (lumaPassthrough)
+			fillNeutralChroma(frame);
 
 		avFormat.av_write_header(formatContext);
+		return videoSt;
+	}
 
-		// videoPts = (double)videoSt.pts.val * videoSt.time_base.num / videoSt.time_base.den;
+	/**
+	 * Writes the frames still delayed in the encoder and the trailer, and
+	 * closes the movie file.
+	 */
+	protected void closeOutput(AVStream videoSt) throws IOException {
+		int i;
 
-		for (int frameCount = 1; frameCount <= stack.getSize(); frameCount++) {
-			/* write video frame */
-			step(null, frameCount / (double)stack.getSize());
-			writeVideoFrame(stack.getProcessor(frameCount), videoSt);
-		}
+		AVOutputFormat fmt = new AVOutputFormat(formatContext.oformat);
 
-		// flush last frame
-		//writeVideoFrame(null, formatContext, videoSt);
+		// flush the frames delayed by the encoder (e.g. because of B-frames)
+		if ((fmt.flags & AVFORMAT.AVFMT_RAWPICTURE) == 0)
+			while (encodeVideoFrame(null, videoSt) > 0)
+				; /* keep flushing */
 
 		/* write the trailer, if any */
 		avFormat.av_write_trailer(formatContext);
 
 		/* close codec */
-		//closeVideo(formatContext, videoSt);
+		closeCodec(codecContext);
+		codecOpen = false;
 
 		/* free the streams */
+		formatContext.read();
 		for (i = 0; i < formatContext.nb_streams; i++) {
 			AVStream tmpStream = new AVStream(formatContext.streams[i]);
 			avUtil.av_free(tmpStream.codec);
@@ -505,15 +1434,15 @@ public void writeMovie(ImagePlus image, String path, int frameRate, int bitRate)
 	}
 
 	protected void writeVideoFrame(ImageProcessor ip, AVStream st) throws IOException {
-		int outSize = 0;
 		//SwsContext imgConvertCtx = null;
+		long start = metrics == null ? 0 : metrics.start();
 
 		if (ip == null) {
 			/* no more frame to compress. The codec has a latency of a few
 			   frames if using B frames, so we get the last frames by
 			   passing the same picture again */
 		} else {
-			if (codecContext.pix_fmt == bufferFramePixelFormat)
+			if (codecContext.pix_fmt == bufferFramePixelFormat || lumaPassthrough)
 				fillImage(frame, ip);
 			else {
 				fillImage(bufferFrame, ip);
@@ -521,73 +1450,129 @@ protected void writeVideoFrame(ImageProcessor ip, AVStream st) throws IOExceptio
 			}
 		}
 
+		encodeVideoFrame(frame, st);
+		if (metrics != null)
+			metrics.record(StageMetrics.WRITE_FRAME, start);
+	}
+
+	/**
+	 * Encodes a frame in the codec's pixel format, and writes it; null
+	 * flushes a frame delayed by the encoder.
+	 *
+	 * @return the size of the encoded frame, or 0 if there was none
+	 */
+	protected int encodeVideoFrame(AVFrame picture, AVStream st) throws IOException {
+		long start = metrics == null ? 0 : metrics.start();
+		int outSize = 0;
 		AVOutputFormat tmpFmt = new AVOutputFormat(formatContext.oformat);
 		if ((tmpFmt.flags & AVFORMAT.AVFMT_RAWPICTURE) != 0) {
 			/* raw video case. The API will change slightly in the near
 			   future for that */
 			avCodec.av_init_packet(packet);
 
-			packet.flags |= AVCODEC.PKT_FLAG_KEY;
-			packet.stream_index = st.index;
-			packet.data = frame.getPointer();
-			packet.size = frame.size();
+			packet.write_flags(AVCODEC.PKT_FLAG_KEY);
+			packet.write_stream_index(st.index);
+			packet.write_data(picture.getPointer());
+			packet.write_size(picture.size());
+			bytesProcessed += picture.size();
 
-			if (avFormat.av_interleaved_write_frame(formatContext, packet) != 0)
+			if (av_interleaved_write_frame(formatContext, packet) != 0)
 				throw new IOException("Error while writing video frame");
 		} else {
-			/* encode the image */
+			/* encode the image, straight into native memory */
 			if (videoOutbutMemory == null)
-				videoOutbutMemory = new Memory(videoOutbut.length);
-			// TODO: special-case avcodec_encode_video() to take a Pointer to avoid frequent copying
-			outSize = avCodec.avcodec_encode_video(codecContext, videoOutbut, videoOutbut.length, frame);
+				videoOutbutMemory = FramePool.getBuffer(videoOutbutSize);
+			outSize = avcodec_encode_video(codecContext, videoOutbutMemory, videoOutbutSize, picture);
+			if (outSize < 0) {
+				// most likely, the buffer was too small; try once more with a larger one
+				FramePool.release(videoOutbutMemory);
+				videoOutbutSize *= 2;
+				videoOutbutMemory = FramePool.getBuffer(videoOutbutSize);
+				outSize = avcodec_encode_video(codecContext, videoOutbutMemory, videoOutbutSize, picture);
+				if (outSize < 0)
+					throw new IOException("Could not encode frame");
+			}
 			/* if zero size, it means the image was buffered */
 			if (outSize > 0) {
 				avCodec.av_init_packet(packet);
 
-				AVFrame tmpFrame = new AVFrame(codecContext.coded_frame);
-				packet.pts = avUtil.av_rescale_q(tmpFrame.pts, new AVUTIL.AVRational.ByValue(codecContext.time_base), new AVUTIL.AVRational.ByValue(st.time_base));
-				if (tmpFrame.key_frame == 1)
-					packet.flags |= AVCODEC.PKT_FLAG_KEY;
-				packet.stream_index = st.index;
-				videoOutbutMemory.write(0, videoOutbut, 0, outSize);
-				packet.data = videoOutbutMemory;
-				packet.size = outSize;
+				if (codedFrame == null)
+					codedFrame = new AVFrame(codecContext.coded_frame);
+				packet.write_pts(avUtil.av_rescale_q(codedFrame.read_pts(), new AVUTIL.AVRational.ByValue(codecContext.time_base), new AVUTIL.AVRational.ByValue(st.time_base)));
+				if (codedFrame.read_key_frame() == 1)
+					packet.write_flags(AVCODEC.PKT_FLAG_KEY);
+				packet.write_stream_index(st.index);
+				packet.write_data(videoOutbutMemory);
+				packet.write_size(outSize);
+				bytesProcessed += outSize;
 
 				/* write the compressed frame in the media file */
-				if (avFormat.av_interleaved_write_frame(formatContext, packet) != 0)
+				if (av_interleaved_write_frame(formatContext, packet) != 0)
 					throw new IOException("Error while writing video frame");
 
 				st.pts.val = packet.pts; // necessary for calculation of video length
 			}
 		}
+		if (metrics != null)
+			metrics.record(StageMetrics.ENCODE, start);
+		return outSize;
+	}
+
+	/**
+	 * Returns the size of the encoder's output buffer: an uncompressed frame
+	 * (at least three bytes per pixel), plus some headroom.
+	 */
+	protected int getOutputBufferSize() {
+		int raw = Math.max(3 * codecContext.width * codecContext.height,
+			avCodec.avpicture_get_size(codecContext.pix_fmt, codecContext.width, codecContext.height));
+		return raw + raw / 8 + AVCODEC.FF_MIN_BUFFER_SIZE;
 	}
 
 	protected void fillImage(AVFrame pict, final ImageProcessor ip) {
+		fillImage(pict, ip, getRowBuffer(3 * ip.getWidth()));
+	}
+
+	/**
+	 * Packs the pixels of a processor into a frame in
+	 * {@link #bufferFramePixelFormat}, using the given row buffer (which
+	 * must hold at least three bytes per pixel of a row).
+	 */
+	protected void fillImage(AVFrame pict, final ImageProcessor ip, final byte[] row) {
+		long start = metrics == null ? 0 : metrics.start();
 		ImageProcessor ip2 = ip;
+		final int width = ip.getWidth(), height = ip.getHeight();
+		final Pointer data = pict.data[0];
+		final int stride = pict.linesize[0];
 		if (bufferFramePixelFormat == AVUTIL.PIX_FMT_RGB24) {
 			if (!(ip2 instanceof ColorProcessor))
 				ip2 = ip2.convertToRGB();
 			int[] pixels = (int[])ip2.getPixels();
 
-			int i = 0, total = ip2.getWidth() * ip2.getHeight();
-			for (int j = 0; j < total; j++) {
-				int v = pixels[j];
-				pict.data[0].setByte(i++, (byte)((v >> 16) & 0xff));
-				pict.data[0].setByte(i++, (byte)((v >> 8) & 0xff));
-				pict.data[0].setByte(i++, (byte)(v & 0xff));
+			for (int j = 0; j < height; j++) {
+				for (int i = 0, k = j * width; i < 3 * width; k++) {
+					int v = pixels[k];
+					row[i++] = (byte)(v >> 16);
+					row[i++] = (byte)(v >> 8);
+					row[i++] = (byte)v;
+				}
+				data.write((long)j * stride, row, 0, 3 * width);
 			}
 		}
-		else if (bufferFramePixelFormat == AVUTIL.PIX_FMT_GRAY16BE) {
+		else if (bufferFramePixelFormat == PIX_FMT_GRAY16_NATIVE && ip2 instanceof FloatProcessor)
+			scaleImage(data, stride, ip2, row, 65535);
+		else if (bufferFramePixelFormat == AVUTIL.PIX_FMT_GRAY8 && scalePixels &&
+				(ip2 instanceof ShortProcessor || ip2 instanceof FloatProcessor))
+			scaleImage(data, stride, ip2, row, 255);
+		else if (bufferFramePixelFormat == PIX_FMT_GRAY16_NATIVE) {
 			if (!(ip2 instanceof ShortProcessor))
 				ip2 = ip2.convertToShort(false);
 			short[] pixels = (short[])ip2.getPixels();
 
-			int i = 0, total = ip2.getWidth() * ip2.getHeight();
-			for (int j = 0; j < total; j++) {
-				int v = pixels[j] & 0xffff;
-				pict.data[0].setByte(i++, (byte)((v >> 8) & 0xff));
-				pict.data[0].setByte(i++, (byte)(v & 0xff));
-			}
+			if (stride == 2 * width)
+				data.write(0, pixels, 0, pixels.length);
+			else
+				for (int j = 0; j < height; j++)
+					data.write((long)j * stride, pixels, j * width, width);
 		}
 		else if (bufferFramePixelFormat == AVUTIL.PIX_FMT_GRAY8 ||
 				bufferFramePixelFormat == AVUTIL.PIX_FMT_PAL8) {
@@ -595,33 +1580,283 @@ else if (bufferFramePixelFormat == AVUTIL.PIX_FMT_GRAY8 ||
 				ip2 = ip2.convertToByte(false);
 			byte[] pixels = (byte[])ip2.getPixels();
 
-			int i = 0, total = ip2.getWidth() * ip2.getHeight();
-			for (int j = 0; j < total; j++) {
-				int v = pixels[j] & 0xff;
-				pict.data[0].setByte(i++, (byte)(v & 0xff));
-			}
+			if (stride == width)
+				data.write(0, pixels, 0, pixels.length);
+			else
+				for (int j = 0; j < height; j++)
+					data.write((long)j * stride, pixels, j * width, width);
 		}
 		else
 			throw new RuntimeException("Unhandled pixel format: " + bufferFramePixelFormat);
+		if (metrics != null)
+			metrics.record(StageMetrics.UNPACK, start);
 	}
 
-	protected void openVideo() throws IOException {
-		@SuppressWarnings("hiding")
-		AVCodec codec;
+	/**
+	 * Maps 16-bit or float pixels linearly from the intensity range to
+	 * 0..maxValue (255 or 65535), writing them row by row in the native
+	 * byte order.
+	 */
+	protected void scaleImage(Pointer data, int stride, ImageProcessor ip, byte[] row, int maxValue) {
+		final double min, max;
+		// the encoding threads may get here concurrently
+		synchronized (this) {
+			if (Double.isNaN(rangeMin)) {
+				double[] range = { Double.MAX_VALUE, -Double.MAX_VALUE };
+				IntensityRange.getMinMax(ip.getPixels(), range);
+				rangeMax = range[1];
+				rangeMin = range[0];
+			}
+			min = rangeMin;
+			max = rangeMax;
+		}
+		final int width = ip.getWidth(), height = ip.getHeight();
+		final double factor = max > min ? maxValue / (max - min) : 1;
+		final boolean sixteenBit = maxValue > 255;
+		float[] floats = ip instanceof FloatProcessor ? (float[])ip.getPixels() : null;
+		short[] shorts = floats == null ? (short[])ip.getPixels() : null;
+		for (int j = 0; j < height; j++) {
+			for (int i = 0, k = j * width; i < width; i++, k++) {
+				double value = floats != null ? floats[k] : shorts[k] & 0xffff;
+				int v = (int)((value - min) * factor + 0.5);
+				if (v < 0)
+					v = 0;
+				else if (v > maxValue)
+					v = maxValue;
+				if (!sixteenBit)
+					row[i] = (byte)v;
+				else if (LITTLE_ENDIAN) {
+					row[2 * i] = (byte)v;
+					row[2 * i + 1] = (byte)(v >> 8);
+				}
+				else {
+					row[2 * i] = (byte)(v >> 8);
+					row[2 * i + 1] = (byte)v;
+				}
+			}
+			data.write((long)j * stride, row, 0, sixteenBit ? 2 * width : width);
+		}
+	}
 
+	protected void openVideo() throws IOException {
 		/* find the video encoder */
-		codec = avCodec.avcodec_find_encoder(codecContext.codec_id);
-		if (codec == null)
+		AVCodec encoder = avCodec.avcodec_find_encoder(codecContext.codec_id);
+		if (encoder == null)
 			throw new IOException("video codec not found for codec id: " + codecContext.codec_id);
+		openVideo(encoder);
+	}
 
+	protected void openVideo(AVCodec encoder) throws IOException {
 		/* open the codec */
-		if (avCodec.avcodec_open(codecContext, codec) < 0)
-			throw new IOException("Could not open video codec");
+		if (!openCodecWithThreads(encoder))
+			throw new IOException("Could not open video codec " + encoder.name);
+		codecOpen = true;
+	}
+
+	/**
+	 * Opens the codec; the whole codec context is written before, and read
+	 * after, as it is not synchronized automatically.
+	 */
+	protected boolean openCodec(AVCodec c) {
+		codecContext.write();
+		boolean result;
+		synchronized (CODEC_LOCK) {
+			result = avCodec.avcodec_open(codecContext, c) >= 0;
+		}
+		codecContext.read();
+		return result;
+	}
+
+	protected static void closeCodec(AVCodecContext context) {
+		synchronized (CODEC_LOCK) {
+			avCodec.avcodec_close(context);
+		}
+	}
+
+	/**
+	 * Chooses the pixel format to encode in: the requested one, or the
+	 * first one supported by the encoder which the pixels can be copied to
+	 * without conversion, or else the encoder's preferred one.
+	 */
+	protected int choosePixelFormat(AVCodec encoder, String name) throws IOException {
+		if (name != null) {
+			int result = avCodec.avcodec_get_pix_fmt(name);
+			if (result == AVUTIL.PIX_FMT_NONE)
+				throw new IOException("Unknown pixel format: " + name);
+			return result;
+		}
+		int[] supported = getPixelFormats(encoder);
+		if (supported.length == 0)
+			return AVUTIL.PIX_FMT_YUV420P;
+		int[] lossless;
+		if (bufferFramePixelFormat == AVUTIL.PIX_FMT_GRAY8)
+			lossless = new int[] { AVUTIL.PIX_FMT_GRAY8 };
+		else if (bufferFramePixelFormat == PIX_FMT_GRAY16_NATIVE)
+			lossless = new int[] { PIX_FMT_GRAY16_NATIVE, AVUTIL.PIX_FMT_GRAY16BE, AVUTIL.PIX_FMT_GRAY16LE };
+		else
+			lossless = new int[] { AVUTIL.PIX_FMT_RGB24, AVUTIL.PIX_FMT_BGR24, AVUTIL.PIX_FMT_RGB32,
+				AVUTIL.PIX_FMT_BGRA, AVUTIL.PIX_FMT_RGBA, AVUTIL.PIX_FMT_ARGB, AVUTIL.PIX_FMT_ABGR };
+		for (int format : lossless)
+			for (int candidate : supported)
+				if (candidate == format)
+					return format;
+		return supported[0];
+	}
+
+	/**
+	 * Returns the pixel formats an encoder supports, in its order of
+	 * preference; an empty array means that the encoder does not say.
+	 */
+	protected static int[] getPixelFormats(AVCodec encoder) {
+		if (encoder.pix_fmts == null)
+			return new int[0];
+		int count = 0;
+		while (encoder.pix_fmts.getInt(4 * count) != AVUTIL.PIX_FMT_NONE)
+			count++;
+		return encoder.pix_fmts.getIntArray(0, count);
+	}
+
+	/**
+	 * Applies the encoder options to the codec context; options without a
+	 * dedicated key are set as AVOptions, e.g. "refs=1" or "crf=18".
+	 */
+	protected void setEncoderOptions(Map<String, String> options) throws IOException {
+		codecContext.gop_size = getInt(options, MovieWriter.GOP_SIZE, codecContext.gop_size);
+		codecContext.max_b_frames = getInt(options, MovieWriter.B_FRAMES, codecContext.max_b_frames);
+		String qscale = options.get(MovieWriter.QSCALE);
+		if (qscale != null) try {
+			codecContext.flags |= AVCODEC.CODEC_FLAG_QSCALE;
+			codecContext.global_quality = (int)(AVCODEC.FF_QP2LAMBDA * Double.parseDouble(qscale));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid " + MovieWriter.QSCALE + ": " + qscale);
+		}
+
+		codecContext.write();
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			if (OUTPUT_OPTIONS.contains(option.getKey()))
+				continue;
+			if (avOpt == null)
+				avOpt = loadLibrary("avcodec", AVCODEC.LIBAVCODEC_VERSION_MAJOR, AVOPT.class);
+			if (avOpt.av_set_string3(codecContext.getPointer(), option.getKey(), option.getValue(), 1, null) < 0)
+				throw new IOException("Invalid encoder option: " + option.getKey() + "=" + option.getValue());
+		}
+		codecContext.read();
+	}
+
+	protected static int getInt(Map<String, String> options, String key, int defaultValue) throws IOException {
+		return (int)getDouble(options, key, defaultValue);
+	}
+
+	protected static double getDouble(Map<String, String> options, String key, double defaultValue) throws IOException {
+		String value = options == null ? null : options.get(key);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid " + key + ": " + value);
+		}
+	}
+
+	/**
+	 * Determines the intensity range to write: the display range of a
+	 * 16-bit image, or else the range of the whole stack (optionally with
+	 * saturated pixels).
+	 */
+	protected void initRange(ImagePlus image, Map<String, String> options) throws IOException {
+		double saturated = getDouble(options, MovieWriter.SATURATED, 0);
+		if (image.getType() == ImagePlus.GRAY16 && saturated <= 0) {
+			rangeMin = image.getDisplayRangeMin();
+			rangeMax = image.getDisplayRangeMax();
+			return;
+		}
+		double[] range = new IntensityRange(image.getStack(), Math.max(1, exportThreads)).getRange(saturated);
+		rangeMin = range[0];
+		rangeMax = range[1];
+	}
+
+	/**
+	 * Sets the chroma planes of a frame in planar YUV to gray, so that only
+	 * the luma plane needs to be filled.
+	 */
+	protected void fillNeutralChroma(AVFrame yuv) {
+		int[] shift = getChromaShift(codecContext.pix_fmt);
+		int width = -((-codecContext.width) >> shift[0]);
+		int height = -((-codecContext.height) >> shift[1]);
+		byte[] row = new byte[width];
+		Arrays.fill(row, (byte)128);
+		for (int plane = 1; plane < 3; plane++)
+			for (int j = 0; j < height; j++)
+				yuv.data[plane].write((long)j * yuv.linesize[plane], row, 0, width);
+	}
+
+	/**
+	 * Sets up libavcodec's threading for the codec context; must be called
+	 * before the codec is opened.
+	 */
+	protected void initThreads() {
+		int count = getCodecThreadCount();
+		if (count <= 1)
+			return;
+		// older ffmpeg revisions only know slice threading, without a thread_type field
+		if (threadType > 0 && !setField(codecContext, "thread_type", threadType))
+			log("Threading type not supported by this ffmpeg version");
+		codecContext.write();
+		if (avCodec.avcodec_thread_init(codecContext, count) < 0)
+			log("Could not initialize " + count + " codec threads");
+		codecContext.read();
+		codecContext.thread_count = count;
+	}
+
+	/**
+	 * Returns the number of codec threads to use for the codec context's
+	 * frame size.
+	 */
+	protected int getCodecThreadCount() {
+		int count = Math.min(threadCount, MAX_CODEC_THREADS);
+		if (codecContext.height > 0)
+			count = Math.min(count, (codecContext.height + 15) / 16);
+		return Math.max(1, count);
+	}
+
+	/**
+	 * Opens the codec with the configured threads; many encoders (e.g.
+	 * MJPEG or H.263) cannot use threads, so opening is retried with a
+	 * single thread when it fails.
+	 */
+	protected boolean openCodecWithThreads(AVCodec c) {
+		initThreads();
+		if (openCodec(c))
+			return true;
+		if (codecContext.thread_count <= 1)
+			return false;
+		codecContext.write();
+		avCodec.avcodec_thread_free(codecContext);
+		codecContext.read();
+		codecContext.thread_count = 1;
+		log("Could not open " + c.name + " with " + getCodecThreadCount() + " threads; using one");
+		return openCodec(c);
+	}
+
+	/**
+	 * Sets a field of a structure that is not present in all ffmpeg revisions.
+	 *
+	 * @return whether the field exists
+	 */
+	protected static boolean setField(Structure structure, String name, int value) {
+		try {
+			structure.getClass().getField(name).setInt(structure, value);
+			return true;
+		} catch (NoSuchFieldException e) {
+			return false;
+		} catch (IllegalAccessException e) {
+			return false;
+		}
 	}
 
 	protected static void closeVideo(AVStream st) {
 		AVCodecContext tmpCodec = new AVCodecContext(st.codec);
-		avCodec.avcodec_close(tmpCodec);
+		closeCodec(tmpCodec);
 	}
 
 	protected AVStream addVideoStream(int codecId, int width, int height, int frameRate, int bitRate, int pixelFormat) {
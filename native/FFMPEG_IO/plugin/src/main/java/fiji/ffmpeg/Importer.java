@@ -6,10 +6,25 @@
 import ij.io.OpenDialog;
 import ij.plugin.PlugIn;
 
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+
 import java.io.File;
 import java.io.IOException;
 
 public class Importer extends ImagePlus implements PlugIn {
+	protected final static String[] THREADING_TYPES = { "frame and slice", "frame", "slice" };
+	protected final static int[] THREADING_TYPE_FLAGS = {
+		IO.FF_THREAD_FRAME | IO.FF_THREAD_SLICE, IO.FF_THREAD_FRAME, IO.FF_THREAD_SLICE
+	};
+	// in the order of IO.COLOR_RGB, IO.COLOR_LUMA and IO.COLOR_YUV
+	protected final static String[] COLOR_MODES = { "RGB", "luma (Y plane only)", "YUV channels" };
+
+	static {
+		// load the libraries in the background while the dialogs are shown
+		FFMPEG.init();
+	}
+
 	/** Takes path as argument, or asks for it and then open the image.*/
 	@Override
 	public void run(final String arg) {
@@ -29,18 +44,56 @@ public void run(final String arg) {
 		gd.addCheckbox("Use_virtual_stack", true);
 		gd.addNumericField("First_frame (0=first)", 0, 0);
 		gd.addNumericField("Last_frame (-1=last)", -1, 0);
+		gd.addNumericField("Stride (every n-th frame)", 1, 0);
+		// more than one thread costs an indexing pass when the movie is opened first
+		gd.addNumericField("Import_threads", 1, 0);
+		gd.addNumericField("Decoder_threads", Runtime.getRuntime().availableProcessors(), 0);
+		gd.addChoice("Threading", THREADING_TYPES, THREADING_TYPES[0]);
+		gd.addChoice("Decode_as", COLOR_MODES, COLOR_MODES[0]);
+		gd.addNumericField("Scale", 1, 3);
+		gd.addNumericField("Crop_x", 0, 0);
+		gd.addNumericField("Crop_y", 0, 0);
+		gd.addNumericField("Crop_width (0=full)", 0, 0);
+		gd.addNumericField("Crop_height (0=full)", 0, 0);
 		gd.showDialog();
 		if (gd.wasCanceled())
 			return;
 		boolean useVirtualStack = gd.getNextBoolean();
 		int first = (int)gd.getNextNumber();
 		int last = (int)gd.getNextNumber();
+		int stride = (int)gd.getNextNumber();
+		int importThreads = (int)gd.getNextNumber();
+		int decoderThreads = (int)gd.getNextNumber();
+		int threadingType = gd.getNextChoiceIndex();
+		int colorMode = gd.getNextChoiceIndex();
+		double scale = gd.getNextNumber();
+		int cropX = (int)gd.getNextNumber();
+		int cropY = (int)gd.getNextNumber();
+		int cropWidth = (int)gd.getNextNumber();
+		int cropHeight = (int)gd.getNextNumber();
+		Rectangle crop = null;
+		if (cropX > 0 || cropY > 0 || cropWidth > 0 || cropHeight > 0)
+			crop = new Rectangle(cropX, cropY,
+				cropWidth > 0 ? cropWidth : Integer.MAX_VALUE / 2,
+				cropHeight > 0 ? cropHeight : Integer.MAX_VALUE / 2);
+		if (!(scale > 0))
+			scale = 1;
 
 		String path = file.getAbsolutePath();
 		IO io = null;
 		try {
-			io = new IO(new IJProgress());
-			setStack(path, io.readMovie(path, useVirtualStack, first, last).getStack());
+			io = new IO(GraphicsEnvironment.isHeadless() ?
+				new StderrProgress() : new IJProgress());
+			io.setImportThreads(importThreads);
+			io.setThreadCount(decoderThreads);
+			io.setThreadType(THREADING_TYPE_FLAGS[threadingType]);
+			io.setColorMode(colorMode);
+			ImagePlus image = io.readMovie(path, useVirtualStack, first, last, stride, crop, scale);
+			if (io.getMetrics() != null)
+				IJ.log(io.getMetrics().toString());
+			setStack(path, image.getStack());
+			setDimensions(image.getNChannels(), image.getNSlices(), image.getNFrames());
+			setOpenAsHyperStack(image.isHyperStack());
 			if ("".equals(arg))
 				show();
 		} catch (IOException e) {
@@ -0,0 +1,152 @@
+package fiji.ffmpeg;
+
+import ij.ImageStack;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Determines the intensity range of a 16-bit or float stack, to map it to
+ * the range of the pixel format a movie is written in.
+ *
+ * The slices are processed by several threads in one pass; only when
+ * saturated pixels are requested, a second pass collects a histogram of
+ * the range to determine the percentiles. The slices of a virtual stack
+ * are read by a single thread, in order, as reading them concurrently is
+ * slow at best, and not safe for every virtual stack.
+ */
+public class IntensityRange {
+	protected final static int BINS = 65536;
+
+	protected ImageStack stack;
+	protected int threadCount;
+	protected AtomicInteger nextSlice = new AtomicInteger();
+
+	public IntensityRange(ImageStack stack, int threadCount) {
+		this.stack = stack;
+		this.threadCount = stack.isVirtual() ? 1 : Math.max(1, Math.min(threadCount, stack.getSize()));
+	}
+
+	/**
+	 * Returns the minimum and the maximum, ignoring NaNs.
+	 */
+	public double[] getMinMax() throws IOException {
+		double[] result = { Double.MAX_VALUE, -Double.MAX_VALUE };
+		for (Object partial : run(new Task() {
+			@Override
+			public Object call() {
+				double[] range = { Double.MAX_VALUE, -Double.MAX_VALUE };
+				for (int slice = nextSlice.incrementAndGet(); slice <= stack.getSize(); slice = nextSlice.incrementAndGet())
+					getMinMax(stack.getPixels(slice), range);
+				return range;
+			}
+		})) {
+			result[0] = Math.min(result[0], ((double[])partial)[0]);
+			result[1] = Math.max(result[1], ((double[])partial)[1]);
+		}
+		if (result[0] > result[1])
+			return new double[] { 0, 0 };
+		return result;
+	}
+
+	/**
+	 * Returns the range that leaves the given percentage of pixels (half of
+	 * them at either end) saturated.
+	 */
+	public double[] getRange(double saturated) throws IOException {
+		final double[] minMax = getMinMax();
+		if (saturated <= 0 || minMax[0] >= minMax[1])
+			return minMax;
+		final double factor = (BINS - 1) / (minMax[1] - minMax[0]);
+		long[] histogram = new long[BINS];
+		for (Object partial : run(new Task() {
+			@Override
+			public Object call() {
+				long[] result = new long[BINS];
+				for (int slice = nextSlice.incrementAndGet(); slice <= stack.getSize(); slice = nextSlice.incrementAndGet())
+					addToHistogram(stack.getPixels(slice), minMax[0], factor, result);
+				return result;
+			}
+		}))
+			for (int i = 0; i < BINS; i++)
+				histogram[i] += ((long[])partial)[i];
+
+		long total = 0;
+		for (long count : histogram)
+			total += count;
+		long threshold = (long)(total * saturated / 200);
+		int low = 0, high = BINS - 1;
+		for (long count = histogram[low]; count <= threshold && low < high; count += histogram[low])
+			low++;
+		for (long count = histogram[high]; count <= threshold && high > low; count += histogram[high])
+			high--;
+		return new double[] { minMax[0] + low / factor, minMax[0] + high / factor };
+	}
+
+	protected static abstract class Task implements Callable<Object> {}
+
+	protected List<Object> run(Task task) throws IOException {
+		nextSlice.set(0);
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		List<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for (int i = 0; i < threadCount; i++)
+			futures.add(executor.submit(task));
+		executor.shutdown();
+		List<Object> result = new ArrayList<Object>();
+		try {
+			for (Future<Object> future : futures)
+				result.add(future.get());
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			throw new IOException("Interrupted while determining the intensity range");
+		} catch (ExecutionException e) {
+			executor.shutdownNow();
+			if (e.getCause() instanceof OutOfMemoryError)
+				throw (OutOfMemoryError)e.getCause();
+			throw new IOException("Could not determine the intensity range: " + e.getCause());
+		}
+		return result;
+	}
+
+	/**
+	 * Extends the range by the values of a 16-bit or float pixel array.
+	 */
+	public static void getMinMax(Object pixels, double[] range) {
+		double min = range[0], max = range[1];
+		if (pixels instanceof float[])
+			for (float value : (float[])pixels) {
+				if (value < min)
+					min = value;
+				if (value > max)
+					max = value;
+			}
+		else if (pixels instanceof short[])
+			for (short value : (short[])pixels) {
+				int v = value & 0xffff;
+				if (v < min)
+					min = v;
+				if (v > max)
+					max = v;
+			}
+		range[0] = min;
+		range[1] = max;
+	}
+
+	protected static void addToHistogram(Object pixels, double min, double factor, long[] histogram) {
+		if (pixels instanceof float[]) {
+			for (float value : (float[])pixels)
+				if (value == value)
+					histogram[Math.max(0, Math.min(BINS - 1, (int)((value - min) * factor)))]++;
+		}
+		else if (pixels instanceof short[])
+			for (short value : (short[])pixels)
+				histogram[Math.max(0, Math.min(BINS - 1, (int)(((value & 0xffff) - min) * factor)))]++;
+	}
+}
@@ -4,12 +4,22 @@
 
 import java.io.CharArrayWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.lang.reflect.Array;
+import java.net.JarURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
 
 import com.sun.jna.Library;
 import com.sun.jna.Native;
@@ -18,6 +28,10 @@
 public class JNALibraryLoader {
 	protected static File libraryDirectory;
 	protected static String baseURL;
+	// where the libraries are extracted to, named after their checksums in the .jar
+	protected static File cacheDirectory;
+	// the cached libraries whose checksums were verified by this JVM
+	protected static Set<String> verified = new HashSet<String>();
 
 	public JNALibraryLoader() {
 		if (baseURL == null) {
@@ -69,35 +83,226 @@ protected static File getTempLibraryDirectory() {
 	@SuppressWarnings("unchecked")
 	protected<T> T loadLibrary(String name, int version, Class<T> libraryClass) {
 		String fileName = getLibraryName(name, version);
-		File file = new File(libraryDirectory, fileName);
-		if (!file.exists()) {
-			if (baseURL == null)
-				throw new RuntimeException("Could not determine .jar");
-			try {
-				copy(new URL(baseURL + getPlatform() + "/" + fileName), file);
-			} catch (Exception e) {
-				throw new RuntimeException("Could not extract " + fileName + ": " + e);
-			}
+		File directory = libraryDirectory;
+		if (!new File(directory, fileName).exists()) try {
+			directory = extract(fileName);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not extract " + fileName + ": " + e);
 		}
 
-		NativeLibrary.addSearchPath(name, libraryDirectory.getAbsolutePath());
+		NativeLibrary.addSearchPath(name, directory.getAbsolutePath());
 		return (T)Native.loadLibrary(name, libraryClass);
 	}
 
-	protected static boolean copy(URL source, File target) {
+	/**
+	 * Extracts a library from the .jar into the cache directory, unless it
+	 * is there already.
+	 *
+	 * The cache directory is shared by all Fiji instances of the user (see
+	 * {@link #getCacheDirectory()}); the library is extracted into a
+	 * temporary file, verified and then renamed, so that no instance can
+	 * see a partially written library. A cached library is verified against
+	 * the checksum in the .jar once per JVM before it is used.
+	 *
+	 * @return the directory holding the library
+	 */
+	protected static synchronized File extract(String fileName) throws IOException {
+		if (baseURL == null)
+			throw new IOException("Could not determine .jar");
+		URL source = new URL(baseURL + getPlatform() + "/" + fileName);
+		URLConnection connection = source.openConnection();
+		long size, crc = -1;
+		if (connection instanceof JarURLConnection) {
+			JarEntry entry = ((JarURLConnection)connection).getJarEntry();
+			size = entry.getSize();
+			crc = entry.getCrc();
+		}
+		else
+			size = connection.getContentLength();
+
+		File directory = getCacheDirectory();
+		File target = new File(directory, fileName);
+		// the directory name changes with the libraries' checksums
+		if (target.length() == size && size > 0 && isValid(target, crc))
+			return directory;
+
+		File tmp = File.createTempFile(fileName, ".tmp", directory);
+		try {
+			long actual = copy(connection.getInputStream(), tmp);
+			if (tmp.length() != size || (crc >= 0 && actual != crc))
+				throw new IOException("Checksum mismatch while extracting " + source);
+			// another instance might have won the race; its copy is just as good
+			if (!tmp.renameTo(target)) {
+				// another instance might have won the race, or the cached copy was corrupt
+				if (!isValid(target, crc) && (!target.delete() || !tmp.renameTo(target)))
+					throw new IOException("Could not rename " + tmp + " to " + target);
+			}
+			verified.add(target.getPath());
+		} finally {
+			tmp.delete();
+		}
+		return directory;
+	}
+
+	/**
+	 * Verifies a cached library against the checksum of its .jar entry
+	 * (unless this JVM did so already).
+	 */
+	protected static boolean isValid(File file, long crc) throws IOException {
+		if (crc < 0 || verified.contains(file.getPath()))
+			return true;
+		if (!file.exists() || crc(new FileInputStream(file)) != crc)
+			return false;
+		verified.add(file.getPath());
+		return true;
+	}
+
+	/**
+	 * Returns the cache directory for the libraries of this .jar. It is
+	 * inside the per-user cache directory (see {@link #getCacheBase()}), and
+	 * named after the checksums of all the libraries for this platform, so
+	 * that a new .jar does not reuse stale libraries, while all instances
+	 * using the same .jar share them.
+	 */
+	protected static File getCacheDirectory() throws IOException {
+		if (cacheDirectory != null)
+			return cacheDirectory;
+		File base = getCacheBase();
+		String key = "local";
+		URLConnection connection = new URL(baseURL).openConnection();
+		if (connection instanceof JarURLConnection) {
+			JarFile jar = ((JarURLConnection)connection).getJarFile();
+			String prefix = getPlatform() + "/";
+			CRC32 checksum = new CRC32();
+			for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements(); ) {
+				JarEntry entry = entries.nextElement();
+				if (!entry.getName().startsWith(prefix) || entry.isDirectory())
+					continue;
+				checksum.update(entry.getName().getBytes("UTF-8"));
+				long crc = entry.getCrc();
+				for (int shift = 0; shift < 32; shift += 8)
+					checksum.update((int)(crc >> shift));
+			}
+			key = Long.toHexString(checksum.getValue());
+		}
+		File directory = new File(base, getPlatform() + "-" + key);
+		makePrivateDirectory(directory);
+		cacheDirectory = directory;
+		return cacheDirectory;
+	}
+
+	/**
+	 * Returns the directory of the plugin's per-user caches, creating it if
+	 * needed: the directory given by the system property
+	 * <i>fiji.ffmpeg.cache</i>, defaulting to <i>.cache/fiji-ffmpeg</i> in the
+	 * user's home directory.
+	 *
+	 * @throws IOException if the directory cannot be created, or is owned by
+	 * another user
+	 */
+	public static File getCacheBase() throws IOException {
+		String base = System.getProperty("fiji.ffmpeg.cache");
+		File directory = base != null ? new File(base) :
+			new File(new File(System.getProperty("user.home"), ".cache"), "fiji-ffmpeg");
+		makePrivateDirectory(directory);
+		return directory;
+	}
+
+	/**
+	 * Creates a directory only its owner can access, unless it exists;
+	 * directories owned by somebody else are refused, as they might contain
+	 * planted files.
+	 */
+	protected static void makePrivateDirectory(File directory) throws IOException {
+		if (!directory.isDirectory()) {
+			if (!directory.mkdirs() && !directory.isDirectory())
+				throw new IOException("Could not create " + directory);
+			directory.setReadable(false, false);
+			directory.setWritable(false, false);
+			directory.setExecutable(false, false);
+			directory.setReadable(true, true);
+			directory.setWritable(true, true);
+			directory.setExecutable(true, true);
+		}
+		if (!isOwnedByUser(directory))
+			throw new IOException(directory + " is not owned by " + System.getProperty("user.name"));
+	}
+
+	/**
+	 * Returns whether a file is owned by the current user; as the owner can
+	 * only be determined on Java 7 and later, older Java versions assume so.
+	 */
+	protected static boolean isOwnedByUser(File file) {
+		Class<?> files, path, linkOption;
 		try {
-			InputStream in = source.openStream();
-			target.deleteOnExit();
-			OutputStream out = new FileOutputStream(target);
+			files = Class.forName("java.nio.file.Files");
+			path = Class.forName("java.nio.file.Path");
+			linkOption = Class.forName("java.nio.file.LinkOption");
+		} catch (ClassNotFoundException e) {
+			return true;
+		}
+		try {
+			Object options = Array.newInstance(linkOption, 1);
+			Array.set(options, 0, linkOption.getField("NOFOLLOW_LINKS").get(null));
+			Object owner = files.getMethod("getOwner", path, options.getClass())
+				.invoke(null, File.class.getMethod("toPath").invoke(file), options);
+			String name = ((java.security.Principal)owner).getName();
+			String user = System.getProperty("user.name");
+			// on Windows, the owner name is prefixed with the domain
+			return name.equals(user) || name.endsWith("\\" + user);
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the CRC-32 of a stream, and closes the stream.
+	 */
+	protected static long crc(InputStream in) throws IOException {
+		CRC32 crc = new CRC32();
+		try {
+			byte[] buffer = new byte[1<<16];
+			for (;;) {
+				int len = in.read(buffer);
+				if (len < 0)
+					break;
+				crc.update(buffer, 0, len);
+			}
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Copies a stream into a file, and closes the stream.
+	 *
+	 * @return the CRC-32 of the copied bytes
+	 */
+	protected static long copy(InputStream in, File target) throws IOException {
+		CRC32 crc = new CRC32();
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(target);
 			byte[] buffer = new byte[1<<16];
 			for (;;) {
 				int len = in.read(buffer);
 				if (len < 0)
 					break;
 				out.write(buffer, 0, len);
+				crc.update(buffer, 0, len);
 			}
+		} finally {
 			in.close();
-			out.close();
+			if (out != null)
+				out.close();
+		}
+		return crc.getValue();
+	}
+
+	protected static boolean copy(URL source, File target) {
+		try {
+			copy(source.openStream(), target);
 			return true;
 		} catch (IOException e) {
 			showException(e);
@@ -0,0 +1,26 @@
+package fiji.ffmpeg;
+
+/**
+ * The metadata of a movie's first video stream, as determined by
+ * {@link IO#probe(String)}.
+ */
+public class MovieInfo {
+	/** The short and the descriptive name of the container format. */
+	public String format, formatDescription;
+	/** The libavcodec codec id (see AVCODEC.CODEC_ID_*). */
+	public int codecId;
+	public int width, height, pixelFormat;
+	/** The frame rate in frames per second, or 0 if unknown. */
+	public double frameRate;
+	/** The duration in seconds, or 0 if unknown. */
+	public double duration;
+	/** The number of frames as stored in the container, or estimated from the duration. */
+	public long frameCount;
+	public int bitRate;
+
+	@Override
+	public String toString() {
+		return format + " " + width + "x" + height + ", " + frameCount + " frames at "
+			+ frameRate + " fps, " + duration + " s";
+	}
+}
@@ -0,0 +1,292 @@
+package fiji.ffmpeg;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.WindowManager;
+import ij.process.ImageProcessor;
+
+import java.awt.EventQueue;
+import java.io.IOException;
+
+import fiji.ffmpeg.AVFORMAT.AVStream;
+
+/**
+ * A virtual stack decoding the frames of a movie on demand.
+ *
+ * If a {@link FrameIndex} is available, every slice is located exactly by
+ * seeking to the keyframe it depends on and decoding up to its timestamp.
+ * Otherwise, the frame duration is guessed and the demuxer is asked to seek
+ * to the approximate time.
+ *
+ * Without an index, the stack can be opened before the frames are counted
+ * (see {@link FrameCounter}); its size grows while they are, and the
+ * windows showing it are updated.
+ *
+ * The decoder is released by {@link #close()}, or once the stack is garbage
+ * collected.
+ */
+public class MovieStack extends VirtualStack implements FrameCounter.Listener {
+	protected IO io;
+	protected AVStream stream;
+	protected FrameIndex index;
+	protected FrameCache cache;
+	protected FrameCounter counter;
+	protected NativeCleaner.Cleanable cleanable;
+	protected ReadAhead readAhead;
+	protected int readAheadFrames, previousRequest = -1, sequentialCount;
+	protected int videoStreamIndex, first, last, stride, channels;
+	protected int lastFrameSlice = -1;
+	protected ImageProcessor lastFrame;
+	protected int previousSlice = -1;
+	protected long frameDuration;
+
+	public MovieStack(IO io, AVStream stream, FrameIndex index, int first, int last) {
+		super(io.outputWidth, io.outputHeight, null, null);
+		this.io = io;
+		this.stream = stream;
+		this.index = index;
+		this.first = first;
+		this.last = last;
+		videoStreamIndex = stream.index;
+		if (io.frameCacheSize != 0)
+			cache = new FrameCache(io.frameCacheSize);
+		readAheadFrames = io.readAheadFrames;
+		stride = io.stride;
+		channels = io.getChannelCount();
+		if (index == null)
+			frameDuration = guessFrameDuration();
+		cleanable = NativeCleaner.register(this, new Closer(io));
+	}
+
+	/**
+	 * Frees the decoder; it must not refer to the stack (not even via the
+	 * frame counter, whose listener is the stack).
+	 */
+	protected static class Closer implements Runnable {
+		protected IO io;
+
+		protected Closer(IO io) {
+			this.io = io;
+		}
+
+		@Override
+		public void run() {
+			io.free();
+		}
+	}
+
+	/**
+	 * Stops decoding ahead and counting, and releases the decoder; the stack
+	 * cannot be used afterwards.
+	 */
+	public synchronized void close() {
+		stopReadAhead();
+		if (counter != null)
+			counter.cancel();
+		cleanable.clean();
+	}
+
+	/**
+	 * Starts counting (and optionally indexing) the frames in the background;
+	 * if the stream does not record its duration, this waits until the first
+	 * frame was found.
+	 */
+	public void startCounting(String path, boolean buildIndex) throws IOException {
+		counter = new FrameCounter(path, videoStreamIndex, buildIndex);
+		counter.setListener(this);
+		counter.start();
+		if (stream.duration > 0 && frameDuration > 0)
+			return;
+		try {
+			counter.waitFor(Math.max(0, first) + 1);
+		} catch (InterruptedException e) {
+			counter.cancel();
+			throw new IOException("Interrupted while counting the frames of " + path);
+		}
+		if (getFrameCount() == 0) {
+			if (counter.getError() != null)
+				throw counter.getError();
+			throw new IOException("No frames in " + path);
+		}
+	}
+
+	@Override
+	public void frameCountChanged(FrameCounter source) {
+		if (source.isDone()) {
+			FrameIndex built = source.getIndex();
+			if (built != null && built.getFrameCount() > 0) {
+				io.saveFrameIndex(built, source.path);
+				setIndex(built);
+			}
+		}
+		updateImages();
+	}
+
+	/**
+	 * Switches to exact seeking once the index is available.
+	 */
+	protected synchronized void setIndex(FrameIndex index) {
+		stopReadAhead();
+		this.index = index;
+		previousSlice = lastFrameSlice = -1;
+		// frames found by approximate seeking might be off
+		if (cache != null)
+			cache.clear();
+	}
+
+	/**
+	 * Updates the windows showing this stack after its size changed.
+	 */
+	protected void updateImages() {
+		EventQueue.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				int[] ids = WindowManager.getIDList();
+				if (ids == null)
+					return;
+				int size = getSize();
+				for (int id : ids) {
+					ImagePlus image = WindowManager.getImage(id);
+					if (image == null || image.getStack() != MovieStack.this ||
+							image.getStackSize() == size || size == 0)
+						continue;
+					if (channels > 1)
+						image.setStack(MovieStack.this, channels, 1, size / channels);
+					else
+						image.setStack(MovieStack.this);
+				}
+			}
+		});
+	}
+
+	@Override
+	public int getSize() {
+		return channels * getFrameCount();
+	}
+
+	/**
+	 * Returns the number of movie frames; each frame has one slice per
+	 * channel.
+	 */
+	public int getFrameCount() {
+		int size;
+		if (index != null)
+			size = index.getFrameCount();
+		else if (counter != null && (counter.isDone() || stream.duration <= 0 || frameDuration <= 0))
+			size = counter.getFrameCount();
+		else
+			size = frameDuration > 0 ? (int)(stream.duration / frameDuration) : 0;
+		if (last >= 0)
+			size = Math.min(last, size);
+		if (first > 0)
+			size -= first;
+		return size <= 0 ? 0 : (size + stride - 1) / stride;
+	}
+
+	/**
+	 * Returns the movie frame (0-based) shown in the given slice (1-based),
+	 * not counting the channels.
+	 */
+	public int getFrameNumber(int slice) {
+		return Math.max(0, first) + (slice - 1) * stride;
+	}
+
+	@Override
+	public String getSliceLabel(int slice) {
+		return ""; // maybe calculate the time?
+	}
+
+	public long guessFrameDuration() {
+		int frameCount = 5;
+		previousSlice = frameCount - 1;
+		return io.guessFrameDuration(frameCount);
+	}
+
+	/**
+	 * @return the cache of decoded frames, or null if caching is disabled
+	 */
+	public FrameCache getFrameCache() {
+		return cache;
+	}
+
+	@Override
+	public synchronized ImageProcessor getProcessor(int slice) {
+		if (channels == 1)
+			return getFrame(slice);
+
+		// the channels of a frame are typically requested one after another
+		int frameSlice = (slice - 1) / channels + 1;
+		if (frameSlice != lastFrameSlice) {
+			lastFrame = getFrame(frameSlice);
+			lastFrameSlice = frameSlice;
+		}
+		return lastFrame == null ? null : io.getChannel(lastFrame, (slice - 1) % channels);
+	}
+
+	/**
+	 * Returns a decoded frame (1-based); with several channels, the frame
+	 * holds all of them (see {@link IO#getChannel}).
+	 */
+	protected synchronized ImageProcessor getFrame(int slice) {
+		boolean sequential = slice == previousRequest + 1;
+		sequentialCount = sequential ? sequentialCount + 1 : 0;
+		previousRequest = slice;
+
+		ImageProcessor ip = null;
+		if (readAhead != null) {
+			if (sequential && slice == readAhead.getNextSlice())
+				ip = readAhead.take();
+			else
+				stopReadAhead();
+		}
+
+		if (ip == null && cache != null) {
+			ip = cache.get(slice);
+			if (ip != null)
+				return ip.duplicate();
+		}
+
+		if (ip == null) {
+			stopReadAhead();
+			ip = decode(slice);
+			// forward sequential access (e.g. playback): decode ahead
+			if (ip != null && readAheadFrames > 0 && sequentialCount >= 2 && slice < getFrameCount())
+				readAhead = new ReadAhead(this, slice + 1, readAheadFrames);
+		}
+
+		// callers may modify the processor, so the cache holds its own copy
+		if (ip != null && cache != null)
+			cache.put(slice, ip.duplicate());
+		return ip;
+	}
+
+	/**
+	 * Cancels decoding ahead, if it is active.
+	 */
+	public synchronized void stopReadAhead() {
+		if (readAhead != null) {
+			readAhead.cancel();
+			readAhead = null;
+		}
+	}
+
+	protected ImageProcessor decode(int slice) {
+		if (index != null) {
+			int frame = getFrameNumber(slice);
+			if (previousSlice != slice - 1 ||
+					IO.needsSeek(index, getFrameNumber(previousSlice), frame))
+				io.seekToPacket(index, index.getSeekPoint(frame));
+			previousSlice = slice;
+			return io.readFrame(videoStreamIndex, index.getFrameKey(frame));
+		}
+
+		long time = getFrameNumber(slice) * frameDuration;
+		if (time > 0)
+			time -=  frameDuration / 2;
+		if (stream.start_time != IO.AV_NOPTS_VALUE)
+			time += stream.start_time;
+		boolean sequential = previousSlice == slice - 1 && stride == 1;
+		previousSlice = slice;
+		return io.readFrameAt(videoStreamIndex, time, sequential);
+	}
+}
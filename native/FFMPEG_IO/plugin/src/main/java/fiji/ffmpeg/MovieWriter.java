@@ -0,0 +1,155 @@
+package fiji.ffmpeg;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Map;
+
+import fiji.ffmpeg.AVFORMAT.AVStream;
+
+/**
+ * Writes a movie frame by frame, e.g. while the frames are acquired.
+ *
+ * Every appended frame is encoded right away, so memory use does not grow
+ * with the number of frames. {@link #close()} writes the frames the encoder
+ * still holds back, and the trailer.
+ */
+public class MovieWriter implements Closeable {
+	/** Option keys for {@link #open}; the values are decimal numbers. */
+	public final static String FRAME_RATE = "framerate", BIT_RATE = "bitrate",
+		GOP_SIZE = "g", B_FRAMES = "bf", QSCALE = "qscale", CRF = "crf";
+	/**
+	 * Option keys for {@link #open}: the encoder name (e.g. "ffv1"), the
+	 * pixel format name (e.g. "yuv420p"), and how to store 8-bit gray
+	 * images in planar YUV ("luma" to copy them into the luma plane verbatim).
+	 */
+	public final static String CODEC = "codec", PIXEL_FORMAT = "pix_fmt", GRAY = "gray";
+	/**
+	 * Option keys for {@link #open}: the intensity range mapped to the
+	 * range of the pixel format when it has fewer bits than the frames
+	 * (float, or 16-bit for an 8-bit codec). Without them, the range of the
+	 * first frame is used.
+	 */
+	public final static String RANGE_MIN = "min", RANGE_MAX = "max";
+	/**
+	 * Option key for {@link IO#writeMovie(ImagePlus, String, Map)}: the
+	 * percentage of saturated pixels when determining the intensity range.
+	 */
+	public final static String SATURATED = "saturated";
+
+	protected IO io;
+	protected AVStream stream;
+	protected int width, height, type, frameCount;
+	protected NativeCleaner.Cleanable cleanable;
+
+	public MovieWriter() throws IOException {
+		this(new IO());
+	}
+
+	public MovieWriter(IO io) {
+		this.io = io;
+	}
+
+	/**
+	 * Opens a movie for writing; the container is derived from the file
+	 * extension, as is the codec unless {@link #CODEC} is given.
+	 *
+	 * Options other than the keys defined by this class are passed on to the
+	 * encoder as AVOptions (e.g. "refs=1"; see <code>ffmpeg -h</code>), so
+	 * that codec-specific settings can be made. See {@link EncoderPresets}
+	 * for lossless settings.
+	 *
+	 * @param type the ImageJ type of the frames (e.g. {@link ImagePlus#GRAY8})
+	 * @param options the encoder options, or null for the defaults
+	 */
+	public void open(String path, int width, int height, int type, Map<String, String> options) throws IOException {
+		if (stream != null)
+			throw new IOException("Already writing a movie");
+		try {
+			stream = io.openOutput(path, width, height, type, options);
+		} catch (IOException e) {
+			io.free();
+			throw e;
+		}
+		this.width = width;
+		this.height = height;
+		this.type = type;
+		frameCount = 0;
+		cleanable = NativeCleaner.register(this, new Closer(io));
+	}
+
+	// must not refer to the writer
+	protected static class Closer implements Runnable {
+		protected IO io;
+
+		protected Closer(IO io) {
+			this.io = io;
+		}
+
+		@Override
+		public void run() {
+			io.free();
+		}
+	}
+
+	/**
+	 * Encodes and writes a frame; it must have the size given to
+	 * {@link #open}.
+	 */
+	public void append(ImageProcessor ip) throws IOException {
+		if (stream == null)
+			throw new IOException("No movie is open");
+		if (ip.getWidth() != width || ip.getHeight() != height)
+			throw new IOException("Frame is " + ip.getWidth() + "x" + ip.getHeight()
+				+ ", expected " + width + "x" + height);
+		io.writeVideoFrame(ip, stream);
+		frameCount++;
+	}
+
+	/**
+	 * Encodes and writes a frame given as a pixel array (byte[], short[],
+	 * int[] holding RGB, or float[]) of the size given to {@link #open}.
+	 */
+	public void append(Object pixels) throws IOException {
+		if (pixels == null || !pixels.getClass().isArray() || Array.getLength(pixels) != width * height)
+			throw new IOException("Expected " + (width * height) + " pixels");
+		ImageProcessor ip;
+		if (pixels instanceof byte[])
+			ip = new ByteProcessor(width, height, (byte[])pixels, null);
+		else if (pixels instanceof short[])
+			ip = new ShortProcessor(width, height, (short[])pixels, null);
+		else if (pixels instanceof int[])
+			ip = new ColorProcessor(width, height, (int[])pixels);
+		else if (pixels instanceof float[])
+			ip = new FloatProcessor(width, height, (float[])pixels, null);
+		else
+			throw new IOException("Unsupported pixel array: " + pixels);
+		append(ip);
+	}
+
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * Flushes the encoder, writes the trailer and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (stream == null)
+			return;
+		try {
+			io.closeOutput(stream);
+		} finally {
+			stream = null;
+			cleanable.clean();
+		}
+	}
+}
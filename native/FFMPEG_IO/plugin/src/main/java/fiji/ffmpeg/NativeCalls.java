@@ -0,0 +1,31 @@
+package fiji.ffmpeg;
+
+/**
+ * The functions called for every frame, taking native addresses instead of
+ * JNA pointers and structures.
+ *
+ * This is implemented by the optional bindings for the Foreign Function &amp;
+ * Memory API which GenerateFFMPEGClasses writes when the system property
+ * <i>ffmpeg.panama</i> is set; see {@link FFMPEG#setBackend(String)}.
+ */
+public interface NativeCalls {
+	/**
+	 * Binds the functions of a library, which JNA loaded from the given file.
+	 *
+	 * @return whether the library provides any of the functions
+	 */
+	public boolean bind(String library, String path);
+
+	public int av_read_frame(long s, long pkt);
+
+	public int av_interleaved_write_frame(long s, long pkt);
+
+	public void av_free_packet(long pkt);
+
+	public int avcodec_decode_video2(long avctx, long picture, long got_picture_ptr, long avpkt);
+
+	public int avcodec_encode_video(long avctx, long buf, int buf_size, long pict);
+
+	public int sws_scale(long context, long srcSlice, long srcStride, int srcSliceY, int srcSliceH,
+		long dst, long dstStride);
+}
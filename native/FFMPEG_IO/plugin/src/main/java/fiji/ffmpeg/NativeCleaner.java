@@ -0,0 +1,71 @@
+package fiji.ffmpeg;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Runs clean-up actions once their owners became unreachable.
+ *
+ * This is the safety net for objects holding native resources (e.g. a
+ * {@link MovieStack} holding an {@link IO}) that are not closed explicitly.
+ * The action must not refer to its owner, or the owner never becomes
+ * unreachable.
+ */
+public class NativeCleaner {
+	public static class Cleanable extends PhantomReference<Object> {
+		protected Runnable action;
+
+		protected Cleanable(Object owner, Runnable action) {
+			super(owner, queue);
+			this.action = action;
+		}
+
+		/**
+		 * Runs the action, unless it ran already.
+		 */
+		public void clean() {
+			Runnable runnable;
+			synchronized (this) {
+				runnable = action;
+				action = null;
+			}
+			if (runnable == null)
+				return;
+			synchronized (cleanables) {
+				cleanables.remove(this);
+			}
+			runnable.run();
+		}
+	}
+
+	protected final static ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+	// keeps the references reachable until they are enqueued
+	protected final static Set<Cleanable> cleanables = new HashSet<Cleanable>();
+	protected static Thread thread;
+
+	public static Cleanable register(Object owner, Runnable action) {
+		Cleanable result = new Cleanable(owner, action);
+		synchronized (cleanables) {
+			cleanables.add(result);
+			if (thread == null) {
+				thread = new Thread("FFMPEG native cleaner") {
+					@Override
+					public void run() {
+						for (;;) try {
+							((Cleanable)queue.remove()).clean();
+						} catch (InterruptedException e) {
+							return;
+						} catch (Throwable t) {
+							JNALibraryLoader.showException(t);
+						}
+					}
+				};
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		return result;
+	}
+}
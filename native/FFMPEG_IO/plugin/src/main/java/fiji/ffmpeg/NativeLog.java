@@ -0,0 +1,236 @@
+package fiji.ffmpeg;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import fiji.ffmpeg.AVLOG.AvLog;
+
+/**
+ * Collects ffmpeg's log lines without blocking the threads that log them.
+ *
+ * The native callback only appends the lines to a lock-free ring buffer; a
+ * background thread writes them, in batches, to the Log window or to a file.
+ * Lines less severe than the level are dropped by ffmpeg before they reach
+ * Java. Beyond a number of lines per second, and when the buffer is full,
+ * lines are dropped and counted; errors are not subject to the rate limit.
+ *
+ * The defaults can be changed with the system properties
+ * <i>fiji.ffmpeg.logLevel</i> (an ffmpeg log level, e.g. 24 for warnings),
+ * <i>fiji.ffmpeg.logRate</i> (lines per second) and <i>fiji.ffmpeg.logFile</i>.
+ */
+public class NativeLog implements AvLog {
+	protected final static int CAPACITY = 1024;
+	// how long the drainer waits when there are no lines (in milliseconds)
+	protected final static long DRAIN_INTERVAL = 100;
+
+	protected static NativeLog instance;
+
+	// the lines, published by the producers and cleared by the drainer
+	protected final AtomicReferenceArray<String> lines = new AtomicReferenceArray<String>(CAPACITY);
+	// the next slot to claim, and the next one to drain
+	protected final AtomicLong head = new AtomicLong();
+	protected volatile long tail;
+
+	protected final AtomicLong dropped = new AtomicLong();
+	protected long reportedDropped;
+	protected volatile int maxLinesPerSecond;
+	protected final AtomicLong currentSecond = new AtomicLong();
+	protected final AtomicInteger linesThisSecond = new AtomicInteger();
+
+	protected volatile File logFile;
+	protected Writer writer;
+	protected volatile Thread drainer;
+
+	protected NativeLog() {
+		maxLinesPerSecond = Integer.getInteger("fiji.ffmpeg.logRate", 100).intValue();
+		String file = System.getProperty("fiji.ffmpeg.logFile");
+		if (file != null)
+			logFile = new File(file);
+	}
+
+	/**
+	 * Returns the log, installing it as ffmpeg's log callback when called
+	 * first.
+	 */
+	public static synchronized NativeLog getInstance() {
+		if (instance == null) {
+			NativeLog log = new NativeLog();
+			FFMPEG.avLog.avSetLogCallback(log);
+			Integer level = Integer.getInteger("fiji.ffmpeg.logLevel");
+			if (level != null)
+				FFMPEG.avUtil.av_log_set_level(level.intValue());
+			// only now, as the callback must stay reachable while it is installed
+			instance = log;
+		}
+		return instance;
+	}
+
+	/**
+	 * Sets ffmpeg's log level (e.g. {@link AVUTIL#AV_LOG_WARNING}); less
+	 * severe lines are not even passed to Java.
+	 */
+	public void setLevel(int level) {
+		FFMPEG.avUtil.av_log_set_level(level);
+	}
+
+	public int getLevel() {
+		return FFMPEG.avUtil.av_log_get_level();
+	}
+
+	/**
+	 * Sets the number of lines per second beyond which lines are dropped.
+	 */
+	public void setMaxLinesPerSecond(int maxLinesPerSecond) {
+		this.maxLinesPerSecond = maxLinesPerSecond;
+	}
+
+	/**
+	 * Sets the file the lines are appended to; null means the Log window.
+	 */
+	public synchronized void setLogFile(File file) {
+		logFile = file;
+		closeWriter();
+	}
+
+	/**
+	 * Returns the number of lines dropped so far.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	@Override
+	public void callback(int level, String line) {
+		if (level > AVUTIL.AV_LOG_ERROR && !withinRate())
+			dropped.incrementAndGet();
+		else if (!offer(line))
+			dropped.incrementAndGet();
+	}
+
+	protected boolean withinRate() {
+		long second = currentTimeMillis() / 1000;
+		long current = currentSecond.get();
+		// when several threads start the next second, some lines may be counted twice
+		if (second != current && currentSecond.compareAndSet(current, second))
+			linesThisSecond.set(0);
+		return linesThisSecond.incrementAndGet() <= maxLinesPerSecond;
+	}
+
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Appends a line to the ring buffer; any thread may call this.
+	 *
+	 * @return false if the buffer is full
+	 */
+	protected boolean offer(String line) {
+		for (;;) {
+			long slot = head.get();
+			if (slot - tail >= CAPACITY)
+				return false;
+			if (head.compareAndSet(slot, slot + 1)) {
+				lines.set((int)(slot % CAPACITY), line);
+				startDrainer();
+				return true;
+			}
+		}
+	}
+
+	protected void startDrainer() {
+		if (drainer != null)
+			return;
+		synchronized (this) {
+			if (drainer != null)
+				return;
+			drainer = new Thread("FFMPEG log drainer") {
+				@Override
+				public void run() {
+					for (;;) try {
+						if (!drain())
+							Thread.sleep(DRAIN_INTERVAL);
+					} catch (InterruptedException e) {
+						return;
+					} catch (Throwable t) {
+						JNALibraryLoader.showException(t);
+					}
+				}
+			};
+			drainer.setDaemon(true);
+			drainer.start();
+		}
+	}
+
+	/**
+	 * Writes the lines collected so far, and how many lines were dropped
+	 * since the last report; only the drainer thread may call this.
+	 *
+	 * @return whether there was anything to write
+	 */
+	protected synchronized boolean drain() throws IOException {
+		StringBuilder batch = new StringBuilder();
+		for (;;) {
+			int index = (int)(tail % CAPACITY);
+			// a claimed slot stays empty until its line is published
+			String line = lines.get(index);
+			if (line == null)
+				break;
+			lines.set(index, null);
+			tail++;
+			if (batch.length() > 0)
+				batch.append('\n');
+			batch.append(line);
+		}
+		long droppedCount = dropped.get();
+		if (droppedCount != reportedDropped) {
+			if (batch.length() > 0)
+				batch.append('\n');
+			batch.append("(" + (droppedCount - reportedDropped) + " ffmpeg log lines dropped)");
+			reportedDropped = droppedCount;
+		}
+		if (batch.length() == 0) {
+			if (writer != null)
+				writer.flush();
+			return false;
+		}
+		write(batch.toString());
+		return true;
+	}
+
+	protected void write(String batch) {
+		if (logFile == null) {
+			IJ.log(batch);
+			return;
+		}
+		try {
+			if (writer == null)
+				writer = new FileWriter(logFile, true);
+			writer.write(batch);
+			writer.write('\n');
+		} catch (IOException e) {
+			closeWriter();
+			IJ.log("Could not write to " + logFile + " (" + e + "); logging to this window");
+			logFile = null;
+			IJ.log(batch);
+		}
+	}
+
+	protected void closeWriter() {
+		if (writer == null)
+			return;
+		try {
+			writer.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		writer = null;
+	}
+}
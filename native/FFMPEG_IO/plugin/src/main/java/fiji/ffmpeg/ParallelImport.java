@@ -0,0 +1,159 @@
+package fiji.ffmpeg;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes a movie with several threads.
+ *
+ * The frames are split into segments starting at keyframes (as determined
+ * by a {@link FrameIndex}); every worker thread has its own format, codec
+ * and swscale contexts, and decodes one segment after another. The
+ * decoded frames are assembled in presentation order. If any frame of the
+ * index cannot be decoded, the import fails.
+ */
+public class ParallelImport {
+	protected IO io;
+	protected String path;
+	protected FrameIndex index;
+	protected int[] segments;
+	protected AtomicInteger nextSegment = new AtomicInteger(), framesDone = new AtomicInteger();
+	protected ImageProcessor[] frames;
+	protected int first, stride, workerCount;
+
+	public ParallelImport(IO io, String path, FrameIndex index) {
+		this.io = io;
+		this.path = path;
+		this.index = index;
+	}
+
+	/**
+	 * Decodes every stride-th frame (0-based, in presentation order) from
+	 * first (inclusive) to last (exclusive; -1 means the end of the movie).
+	 */
+	public ImageStack read(int firstFrame, int last, int frameStride, int threadCount) throws IOException {
+		first = Math.max(0, firstFrame);
+		stride = Math.max(1, frameStride);
+		int end = index.getFrameCount();
+		if (last >= 0)
+			end = Math.min(last, end);
+		frames = new ImageProcessor[Math.max(0, (end - first + stride - 1) / stride)];
+		// several segments per thread, to balance the load
+		segments = splitAtKeyFrames(first, end, threadCount * 4);
+		workerCount = threadCount;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int i = 0; i < threadCount; i++)
+			futures.add(executor.submit(new Worker()));
+		executor.shutdown();
+		try {
+			for (Future<Void> future : futures)
+				while (!waitFor(future))
+					io.step(null, framesDone.get() / (double)Math.max(1, frames.length),
+						framesDone.get(), frames.length, -1);
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			throw new IOException("Interrupted while reading " + path);
+		} catch (ExecutionException e) {
+			executor.shutdownNow();
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof OutOfMemoryError)
+				throw (OutOfMemoryError)cause;
+			throw new IOException("Could not read " + path + ": " + cause);
+		}
+
+		ImageStack stack = new ImageStack(io.outputWidth, io.outputHeight);
+		for (ImageProcessor ip : frames)
+			io.addFrame(stack, ip);
+		return stack;
+	}
+
+	protected boolean waitFor(Future<Void> future) throws InterruptedException, ExecutionException {
+		try {
+			future.get(250, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Splits the frame range into (at most) the given number of segments,
+	 * moving the boundaries to the next frame where decoding can start.
+	 *
+	 * @return the segment boundaries, starting with begin and ending with end
+	 */
+	protected int[] splitAtKeyFrames(int begin, int end, int count) {
+		List<Integer> boundaries = new ArrayList<Integer>();
+		boundaries.add(Integer.valueOf(begin));
+		for (int i = 1; i < count; i++) {
+			int boundary = begin + (int)((end - begin) * (long)i / count);
+			boundary = Math.max(boundary, boundaries.get(boundaries.size() - 1).intValue() + 1);
+			while (boundary < end && !index.isSeekPoint(boundary))
+				boundary++;
+			if (boundary >= end)
+				break;
+			boundaries.add(Integer.valueOf(boundary));
+		}
+		boundaries.add(Integer.valueOf(end));
+
+		int[] result = new int[boundaries.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = boundaries.get(i).intValue();
+		return result;
+	}
+
+	protected class Worker implements Callable<Void> {
+		@Override
+		public Void call() throws IOException {
+			IO worker = new IO();
+			// the segments are decoded in parallel already
+			worker.setThreadCount(Math.max(1, io.getThreadCount() / workerCount));
+			worker.copyDecodeSettings(io);
+			worker.setMetrics(io.getMetrics());
+			try {
+				int videoStream = worker.openInput(path);
+				worker.allocateFrames(false);
+				for (;;) {
+					int segment = nextSegment.getAndIncrement();
+					if (segment + 1 >= segments.length)
+						break;
+					int begin = segments[segment], end = segments[segment + 1];
+					// the first frame of the segment that is imported
+					begin = first + (begin - first + stride - 1) / stride * stride;
+					for (int frame = begin, previous = -1; frame < end; frame += stride) {
+						if (Thread.currentThread().isInterrupted())
+							return null;
+						if (IO.needsSeek(index, previous, frame))
+							worker.seekToPacket(index, index.getSeekPoint(frame));
+						ImageProcessor ip = worker.readFrame(videoStream, index.getFrameKey(frame));
+						// a gap would shift all the following slices
+						if (ip == null)
+							throw new IOException("Could not decode frame " + frame + " of " + path);
+						frames[(frame - first) / stride] = ip;
+						previous = frame;
+						framesDone.incrementAndGet();
+					}
+				}
+			} finally {
+				worker.free();
+			}
+			return null;
+		}
+	}
+}
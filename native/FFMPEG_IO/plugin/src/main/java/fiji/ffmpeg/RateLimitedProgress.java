@@ -0,0 +1,93 @@
+package fiji.ffmpeg;
+
+/**
+ * Forwards progress updates to another {@link Progress} at most a fixed
+ * number of times per second, computing the throughput for a
+ * {@link ThroughputProgress}.
+ *
+ * Updates with a message, and the final one, are always forwarded. The
+ * updates may come from several threads.
+ */
+public class RateLimitedProgress implements Progress {
+	public final static int DEFAULT_UPDATES_PER_SECOND = 10;
+
+	protected Progress delegate;
+	protected long interval;
+	protected volatile long nextUpdate;
+	protected long startTime, lastTime, lastFrames, lastBytes;
+
+	public RateLimitedProgress(Progress delegate) {
+		this(delegate, DEFAULT_UPDATES_PER_SECOND);
+	}
+
+	public RateLimitedProgress(Progress delegate, int updatesPerSecond) {
+		this.delegate = delegate;
+		interval = 1000000000l / Math.max(1, updatesPerSecond);
+		startTime = lastTime = nextUpdate = System.nanoTime();
+	}
+
+	public Progress getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public synchronized void start(String message) {
+		startTime = lastTime = nextUpdate = System.nanoTime();
+		lastFrames = lastBytes = 0;
+		delegate.start(message);
+	}
+
+	@Override
+	public void step(String message, double progress) {
+		step(message, progress, -1, -1, -1);
+	}
+
+	/**
+	 * Reports the progress, and the frames and (compressed) bytes processed
+	 * so far; -1 means unknown.
+	 */
+	public void step(String message, double progress, long framesDone, long framesTotal, long bytes) {
+		long now = System.nanoTime();
+		if (message == null && progress < 1 && now - nextUpdate < 0)
+			return;
+		synchronized (this) {
+			// another thread may have reported in the meantime
+			if (message == null && progress < 1 && now - nextUpdate < 0)
+				return;
+			nextUpdate = now + interval;
+			if (framesDone < 0 || !(delegate instanceof ThroughputProgress)) {
+				delegate.step(message, progress);
+				return;
+			}
+			Throughput throughput = new Throughput();
+			throughput.framesDone = framesDone;
+			throughput.framesTotal = framesTotal;
+			throughput.bytes = bytes;
+			throughput.elapsed = (now - startTime) / 1e9;
+			double seconds = (now - lastTime) / 1e9;
+			if (seconds > 0) {
+				throughput.framesPerSecond = (framesDone - lastFrames) / seconds;
+				if (bytes >= 0)
+					throughput.bytesPerSecond = (bytes - lastBytes) / seconds;
+			}
+			if (framesTotal > 0 && framesDone > 0)
+				throughput.remaining = throughput.elapsed * (framesTotal - framesDone) / framesDone;
+			else if (progress > 0 && progress <= 1)
+				throughput.remaining = throughput.elapsed * (1 - progress) / progress;
+			lastTime = now;
+			lastFrames = framesDone;
+			lastBytes = Math.max(0, bytes);
+			((ThroughputProgress)delegate).step(message, progress, throughput);
+		}
+	}
+
+	@Override
+	public synchronized void done(String message) {
+		delegate.done(message);
+	}
+
+	@Override
+	public void log(String message) {
+		delegate.log(message);
+	}
+}
@@ -0,0 +1,109 @@
+package fiji.ffmpeg;
+
+import ij.process.ImageProcessor;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes the next frames of a {@link MovieStack} on a dedicated thread.
+ *
+ * The decoded frames are handed over through a bounded ring buffer; the
+ * worker blocks while the buffer is full. While the worker runs, it is the
+ * only thread touching the decoder, so it has to be cancelled before the
+ * stack can seek.
+ *
+ * The worker only holds a weak reference to the stack while waiting, and
+ * stops once the stack was garbage collected.
+ */
+public class ReadAhead implements Runnable {
+	protected WeakReference<MovieStack> stack;
+	protected ArrayBlockingQueue<ImageProcessor> queue;
+	protected Thread thread;
+	protected volatile boolean cancelled;
+	protected int nextSlice, lastSlice;
+
+	/**
+	 * @param stack the stack to decode
+	 * @param firstSlice the first frame to decode (1-based)
+	 * @param frameCount the size of the ring buffer
+	 */
+	public ReadAhead(MovieStack stack, int firstSlice, int frameCount) {
+		this.stack = new WeakReference<MovieStack>(stack);
+		nextSlice = firstSlice;
+		lastSlice = stack.getFrameCount();
+		queue = new ArrayBlockingQueue<ImageProcessor>(frameCount);
+		thread = new Thread(this, "FFMPEG read-ahead");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		try {
+			for (int slice = nextSlice; slice <= lastSlice && !cancelled; slice++) {
+				ImageProcessor ip = decode(slice);
+				if (ip == null)
+					break;
+				while (!queue.offer(ip, 100, TimeUnit.MILLISECONDS))
+					if (cancelled || stack.get() == null)
+						return;
+			}
+		} catch (InterruptedException e) {
+			/* cancelled */
+		}
+	}
+
+	protected ImageProcessor decode(int slice) {
+		MovieStack movieStack = stack.get();
+		return movieStack == null ? null : movieStack.decode(slice);
+	}
+
+	/**
+	 * Returns the slice that {@link #take()} will return next.
+	 */
+	public int getNextSlice() {
+		return nextSlice;
+	}
+
+	/**
+	 * Waits for the next decoded slice.
+	 *
+	 * @return the frame, or null if the worker ended before decoding it
+	 */
+	public ImageProcessor take() {
+		try {
+			for (;;) {
+				ImageProcessor ip = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (ip != null) {
+					nextSlice++;
+					return ip;
+				}
+				if (!thread.isAlive() && queue.isEmpty())
+					return null;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Stops the worker and waits until it no longer touches the decoder.
+	 */
+	public void cancel() {
+		cancelled = true;
+		thread.interrupt();
+		boolean interrupted = false;
+		while (thread.isAlive())
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		queue.clear();
+	}
+}
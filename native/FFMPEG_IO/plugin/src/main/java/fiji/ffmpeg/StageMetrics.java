@@ -0,0 +1,333 @@
+package fiji.ffmpeg;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how often, and how long, each stage of decoding and encoding
+ * runs, to tell where the time of an import or export goes.
+ *
+ * An {@link IO} only measures when it is given an instance (see
+ * {@link IO#setMetrics(StageMetrics)}, or the system property
+ * <i>fiji.ffmpeg.metrics</i>); otherwise, each stage costs one field
+ * check. An instance may be shared by several threads and instances of
+ * {@link IO}.
+ *
+ * The durations are kept in histograms with power-of-two buckets (in
+ * nanoseconds). When JDK Flight Recorder is available (Java 11 or later)
+ * and enabled with {@link #setFlightRecorder(boolean)} or the system
+ * property <i>fiji.ffmpeg.jfr</i>, an event <i>fiji.ffmpeg.Stage</i> is
+ * committed for every measurement, spanning the stage, with the stage's
+ * name.
+ */
+public class StageMetrics {
+	/** Reading a packet from the file */
+	public final static int DEMUX = 0;
+	/** Decoding a packet */
+	public final static int DECODE = 1;
+	/** Converting a decoded frame with swscale */
+	public final static int SCALE_IN = 2;
+	/** Copying a converted frame into a processor */
+	public final static int PACK = 3;
+	/** Adding a processor to the stack */
+	public final static int ADD = 4;
+	/** Decoding and converting a frame (includes DECODE, SCALE_IN and PACK) */
+	public final static int READ_FRAME = 5;
+	/** Copying a processor into a frame */
+	public final static int UNPACK = 6;
+	/** Converting a frame to the codec's pixel format with swscale */
+	public final static int SCALE_OUT = 7;
+	/** Encoding and writing a frame */
+	public final static int ENCODE = 8;
+	/** Converting and encoding a frame (includes UNPACK, SCALE_OUT and ENCODE) */
+	public final static int WRITE_FRAME = 9;
+
+	public final static String[] STAGE_NAMES = {
+		"demux", "decode", "scale in", "pack", "add", "read frame",
+		"unpack", "scale out", "encode", "write frame"
+	};
+
+	protected final static int STAGES = STAGE_NAMES.length;
+	// bucket b counts the durations d with 2^(b-1) <= d < 2^b nanoseconds
+	protected final static int BUCKETS = 64;
+
+	protected final AtomicLongArray counts = new AtomicLongArray(STAGES);
+	protected final AtomicLongArray totals = new AtomicLongArray(STAGES);
+	protected final AtomicLongArray maxima = new AtomicLongArray(STAGES);
+	protected final AtomicLongArray histograms = new AtomicLongArray(STAGES * BUCKETS);
+
+	protected volatile boolean flightRecorder;
+
+	public StageMetrics() {
+		flightRecorder = Boolean.getBoolean("fiji.ffmpeg.jfr") && FlightRecorderEvents.isAvailable();
+	}
+
+	/**
+	 * Returns an instance if the system property <i>fiji.ffmpeg.metrics</i>
+	 * or <i>fiji.ffmpeg.jfr</i> is set, and null otherwise.
+	 */
+	public static StageMetrics fromSystemProperties() {
+		if (!Boolean.getBoolean("fiji.ffmpeg.metrics") && !Boolean.getBoolean("fiji.ffmpeg.jfr"))
+			return null;
+		return new StageMetrics();
+	}
+
+	/**
+	 * Commits a Flight Recorder event for each measurement from now on.
+	 *
+	 * @return whether Flight Recorder is available
+	 */
+	public boolean setFlightRecorder(boolean enabled) {
+		flightRecorder = enabled && FlightRecorderEvents.isAvailable();
+		return flightRecorder || !enabled;
+	}
+
+	public boolean getFlightRecorder() {
+		return flightRecorder;
+	}
+
+	/**
+	 * Returns the start time to pass to {@link #record(int, long)}; the
+	 * stages started by one thread must be recorded in reverse order.
+	 */
+	public long start() {
+		long result = System.nanoTime();
+		if (flightRecorder)
+			FlightRecorderEvents.begin(result);
+		return result;
+	}
+
+	/**
+	 * Records a stage which started at the given time (see {@link #start()}).
+	 */
+	public void record(int stage, long start) {
+		long duration = System.nanoTime() - start;
+		if (duration < 0)
+			duration = 0;
+		counts.incrementAndGet(stage);
+		totals.addAndGet(stage, duration);
+		for (;;) {
+			long max = maxima.get(stage);
+			if (duration <= max || maxima.compareAndSet(stage, max, duration))
+				break;
+		}
+		histograms.incrementAndGet(stage * BUCKETS + bucket(duration));
+		if (flightRecorder)
+			FlightRecorderEvents.commit(STAGE_NAMES[stage], start);
+	}
+
+	protected static int bucket(long duration) {
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(duration));
+	}
+
+	public long getCount(int stage) {
+		return counts.get(stage);
+	}
+
+	/** Returns the total time spent in a stage, in nanoseconds. */
+	public long getTotal(int stage) {
+		return totals.get(stage);
+	}
+
+	/** Returns the longest time spent in a stage, in nanoseconds. */
+	public long getMaximum(int stage) {
+		return maxima.get(stage);
+	}
+
+	/** Returns the average time spent in a stage, in nanoseconds. */
+	public double getMean(int stage) {
+		long count = counts.get(stage);
+		return count == 0 ? 0 : totals.get(stage) / (double)count;
+	}
+
+	/**
+	 * Returns the number of durations of a stage in each bucket of the
+	 * histogram; bucket b counts the durations from 2^(b-1) (inclusive) up
+	 * to 2^b nanoseconds.
+	 */
+	public long[] getHistogram(int stage) {
+		long[] result = new long[BUCKETS];
+		for (int b = 0; b < BUCKETS; b++)
+			result[b] = histograms.get(stage * BUCKETS + b);
+		return result;
+	}
+
+	/**
+	 * Estimates a percentile (between 0 and 100) of the durations of a
+	 * stage, as the upper bound of the bucket it falls into.
+	 */
+	public long getPercentile(int stage, double percentile) {
+		long[] histogram = getHistogram(stage);
+		long count = 0;
+		for (int b = 0; b < BUCKETS; b++)
+			count += histogram[b];
+		if (count == 0)
+			return 0;
+		long rank = (long)Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += histogram[b];
+			if (seen >= rank && seen > 0)
+				return b >= 63 ? Long.MAX_VALUE : 1l << b;
+		}
+		return Long.MAX_VALUE;
+	}
+
+	public void reset() {
+		for (int i = 0; i < STAGES; i++) {
+			counts.set(i, 0);
+			totals.set(i, 0);
+			maxima.set(i, 0);
+		}
+		for (int i = 0; i < STAGES * BUCKETS; i++)
+			histograms.set(i, 0);
+	}
+
+	/**
+	 * Returns a table of the stages that ran, with the times in milliseconds.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("stage\tcount\ttotal\tmean\tp50\tp99\tmax");
+		for (int i = 0; i < STAGES; i++) {
+			long count = getCount(i);
+			if (count == 0)
+				continue;
+			builder.append('\n').append(STAGE_NAMES[i]).append('\t').append(count)
+				.append('\t').append(millis(getTotal(i)))
+				.append('\t').append(millis(getMean(i)))
+				.append('\t').append(millis(getPercentile(i, 50)))
+				.append('\t').append(millis(getPercentile(i, 99)))
+				.append('\t').append(millis(getMaximum(i)));
+		}
+		return builder.toString();
+	}
+
+	protected static String millis(double nanos) {
+		return String.valueOf(Math.round(nanos / 1e4) / 100.0);
+	}
+
+	/**
+	 * Defines and commits the Flight Recorder events through reflection, as
+	 * jdk.jfr is not available on all the Java versions this runs on.
+	 *
+	 * The events are begun in {@link StageMetrics#start()} and kept per
+	 * thread, with their start times, until they are ended and committed in
+	 * {@link StageMetrics#record(int, long)}.
+	 */
+	protected static class FlightRecorderEvents {
+		// keep the stages of one thread from piling up when a stage fails
+		protected final static int MAX_PENDING = 64;
+
+		protected static boolean initialized, available;
+		protected static Object factory;
+		protected static Method newEvent, isEnabled, begin, end, set, shouldCommit, commit;
+
+		protected static class Pending {
+			protected long start;
+			protected Object event;
+		}
+
+		protected final static ThreadLocal<List<Pending>> pending = new ThreadLocal<List<Pending>>() {
+			@Override
+			protected List<Pending> initialValue() {
+				return new ArrayList<Pending>();
+			}
+		};
+
+		protected static synchronized boolean isAvailable() {
+			if (!initialized) try {
+				initialized = true;
+				ClassLoader loader = ClassLoader.getSystemClassLoader();
+				Class<?> annotationElement = loader.loadClass("jdk.jfr.AnnotationElement");
+				Class<?> valueDescriptor = loader.loadClass("jdk.jfr.ValueDescriptor");
+				Class<?> eventFactory = loader.loadClass("jdk.jfr.EventFactory");
+				Class<?> event = loader.loadClass("jdk.jfr.Event");
+
+				List<Object> annotations = new ArrayList<Object>();
+				annotations.add(annotation(annotationElement, "jdk.jfr.Name", "fiji.ffmpeg.Stage"));
+				annotations.add(annotation(annotationElement, "jdk.jfr.Label", "FFMPEG Stage"));
+				annotations.add(annotationElement.getConstructor(Class.class, Object.class)
+					.newInstance(loader.loadClass("jdk.jfr.Category"), new String[] { "FFMPEG" }));
+
+				List<Object> fields = new ArrayList<Object>();
+				fields.add(field(valueDescriptor, annotationElement, String.class, "stage", "Stage"));
+
+				factory = eventFactory.getMethod("create", List.class, List.class)
+					.invoke(null, annotations, fields);
+				newEvent = eventFactory.getMethod("newEvent");
+				isEnabled = event.getMethod("isEnabled");
+				begin = event.getMethod("begin");
+				end = event.getMethod("end");
+				set = event.getMethod("set", int.class, Object.class);
+				shouldCommit = event.getMethod("shouldCommit");
+				commit = event.getMethod("commit");
+				available = true;
+			} catch (Throwable t) {
+				available = false;
+			}
+			return available;
+		}
+
+		protected static Object annotation(Class<?> annotationElement, String type, String value) throws Exception {
+			return annotationElement.getConstructor(Class.class, Object.class)
+				.newInstance(ClassLoader.getSystemClassLoader().loadClass(type), value);
+		}
+
+		protected static Object field(Class<?> valueDescriptor, Class<?> annotationElement, Class<?> type,
+				String name, String label) throws Exception {
+			List<Object> annotations = new ArrayList<Object>();
+			annotations.add(annotation(annotationElement, "jdk.jfr.Label", label));
+			return valueDescriptor.getConstructor(Class.class, String.class, List.class)
+				.newInstance(type, name, annotations);
+		}
+
+		protected static void begin(long start) {
+			try {
+				Object event = newEvent.invoke(factory);
+				// without a recording, there is nothing to end
+				if (!((Boolean)isEnabled.invoke(event)).booleanValue())
+					return;
+				List<Pending> list = pending.get();
+				if (list.size() >= MAX_PENDING)
+					list.remove(0);
+				Pending entry = new Pending();
+				entry.start = start;
+				entry.event = event;
+				list.add(entry);
+				begin.invoke(event);
+			} catch (Throwable t) {
+				// ignore; the histograms are still kept
+			}
+		}
+
+		protected static void commit(String stage, long start) {
+			List<Pending> list = pending.get();
+			// stages that failed before they were recorded are dropped
+			for (int i = list.size() - 1; i >= 0; i--) {
+				if (list.get(i).start != start)
+					continue;
+				Object event = list.get(i).event;
+				while (list.size() > i)
+					list.remove(list.size() - 1);
+				try {
+					end.invoke(event);
+					if (!((Boolean)shouldCommit.invoke(event)).booleanValue())
+						return;
+					set.invoke(event, Integer.valueOf(0), stage);
+					commit.invoke(event);
+				} catch (Throwable t) {
+					// ignore; the histograms are still kept
+				}
+				return;
+			}
+		}
+
+		protected static int getPendingCount() {
+			return pending.get().size();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package fiji.ffmpeg;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Writes the progress to stderr as lines of key=value pairs, for batch jobs
+ * without a GUI:
+ *
+ * <pre>
+ * ffmpeg start message="Reading movie.avi"
+ * ffmpeg progress fraction=0.420 frames=120 total=500 fps=45.2 MBps=12.3 elapsed=2.7 remaining=3.7
+ * ffmpeg done message="Opened movie.avi" elapsed=6.3
+ * </pre>
+ *
+ * Unknown values are left out.
+ */
+public class StderrProgress implements ThroughputProgress {
+	protected PrintStream out;
+	protected long startTime = System.nanoTime();
+
+	public StderrProgress() {
+		this(System.err);
+	}
+
+	public StderrProgress(PrintStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void start(String message) {
+		startTime = System.nanoTime();
+		out.println("ffmpeg start message=" + quote(message));
+	}
+
+	@Override
+	public void step(String message, double progress) {
+		out.println("ffmpeg progress" + (message == null ? "" : " message=" + quote(message))
+			+ format(" fraction=%.3f", progress));
+	}
+
+	@Override
+	public void step(String message, double progress, Throughput throughput) {
+		StringBuilder line = new StringBuilder("ffmpeg progress");
+		if (message != null)
+			line.append(" message=").append(quote(message));
+		line.append(format(" fraction=%.3f", progress));
+		line.append(" frames=").append(throughput.framesDone);
+		if (throughput.framesTotal >= 0)
+			line.append(" total=").append(throughput.framesTotal);
+		line.append(format(" fps=%.1f", throughput.framesPerSecond));
+		if (throughput.bytes >= 0)
+			line.append(format(" MBps=%.1f", throughput.getMegabytesPerSecond()));
+		line.append(format(" elapsed=%.1f", throughput.elapsed));
+		if (!Double.isNaN(throughput.remaining))
+			line.append(format(" remaining=%.1f", throughput.remaining));
+		out.println(line);
+	}
+
+	@Override
+	public void done(String message) {
+		out.println("ffmpeg done message=" + quote(message)
+			+ format(" elapsed=%.1f", (System.nanoTime() - startTime) / 1e9));
+	}
+
+	@Override
+	public void log(String message) {
+		out.println("ffmpeg log message=" + quote(message));
+	}
+
+	protected static String format(String format, double value) {
+		return String.format(Locale.US, format, Double.valueOf(value));
+	}
+
+	protected static String quote(String message) {
+		return "\"" + String.valueOf(message).replace("\\", "\\\\").replace("\"", "\\\"")
+			.replace("\n", "\\n") + "\"";
+	}
+}
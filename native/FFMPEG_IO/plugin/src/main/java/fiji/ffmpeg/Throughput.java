@@ -0,0 +1,40 @@
+package fiji.ffmpeg;
+
+/**
+ * The throughput of a running import or export, as reported to a
+ * {@link ThroughputProgress}.
+ */
+public class Throughput {
+	public long framesDone;
+	/** The number of frames to process, or -1 if unknown. */
+	public long framesTotal = -1;
+	/** The (compressed) bytes read or written so far, or -1 if unknown. */
+	public long bytes = -1;
+	/** The seconds since the operation started. */
+	public double elapsed;
+	/** The rates since the previous report. */
+	public double framesPerSecond, bytesPerSecond;
+	/** The estimated seconds until the operation is done, or NaN if unknown. */
+	public double remaining = Double.NaN;
+
+	public double getMegabytesPerSecond() {
+		return bytesPerSecond / (1024 * 1024);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(framesDone);
+		if (framesTotal >= 0)
+			builder.append('/').append(framesTotal);
+		builder.append(" frames, ").append(Math.round(framesPerSecond * 10) / 10.0).append(" fps");
+		if (bytes >= 0)
+			builder.append(", ").append(Math.round(getMegabytesPerSecond() * 10) / 10.0).append(" MB/s");
+		if (!Double.isNaN(remaining)) {
+			long seconds = Math.round(remaining);
+			builder.append(", ").append(seconds / 60).append(':')
+				.append(seconds % 60 < 10 ? "0" : "").append(seconds % 60).append(" left");
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,12 @@
+package fiji.ffmpeg;
+
+/**
+ * A {@link Progress} that is told the throughput, too.
+ *
+ * {@link RateLimitedProgress} calls {@link #step(String, double, Throughput)}
+ * instead of {@link #step(String, double)} when the number of frames done
+ * is known.
+ */
+public interface ThroughputProgress extends Progress {
+	public void step(String message, double progress, Throughput throughput);
+}
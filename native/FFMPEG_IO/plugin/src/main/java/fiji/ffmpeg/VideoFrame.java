@@ -0,0 +1,76 @@
+package fiji.ffmpeg;
+
+import ij.process.ImageProcessor;
+
+/**
+ * A decoded frame as handed out by a {@link FrameReader}.
+ *
+ * The reader reuses the same instance, and the same pixel buffer, for all
+ * frames; use {@link #duplicate()} to keep a frame around.
+ */
+public class VideoFrame {
+	protected IO io;
+	protected ImageProcessor processor;
+	protected int index;
+	protected long pts;
+	protected boolean keyFrame;
+	protected double timeBase;
+
+	protected VideoFrame(IO io, double timeBase) {
+		this.io = io;
+		this.timeBase = timeBase;
+	}
+
+	/**
+	 * Returns the pixels; with several channels, they are stacked
+	 * vertically (see {@link #getChannel(int)}).
+	 */
+	public ImageProcessor getProcessor() {
+		return processor;
+	}
+
+	public int getChannelCount() {
+		return io.getChannelCount();
+	}
+
+	public ImageProcessor getChannel(int channel) {
+		return io.getChannel(processor, channel);
+	}
+
+	/**
+	 * Returns the number of the frame (0-based) in the movie.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Returns the presentation time stamp, in stream time base units.
+	 */
+	public long getPTS() {
+		return pts;
+	}
+
+	/**
+	 * Returns the presentation time in seconds, or NaN if it is not known.
+	 */
+	public double getTime() {
+		return pts == IO.AV_NOPTS_VALUE ? Double.NaN : pts * timeBase;
+	}
+
+	public boolean isKeyFrame() {
+		return keyFrame;
+	}
+
+	/**
+	 * Returns a copy that is not touched by the reader anymore.
+	 */
+	public VideoFrame duplicate() {
+		VideoFrame result = new VideoFrame(io, timeBase);
+		result.processor = processor.duplicate();
+		result.index = index;
+		result.pts = pts;
+		result.keyFrame = keyFrame;
+		return result;
+	}
+}
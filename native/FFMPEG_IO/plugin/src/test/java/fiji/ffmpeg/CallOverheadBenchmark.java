@@ -0,0 +1,72 @@
+package fiji.ffmpeg;
+
+import com.sun.jna.Pointer;
+
+import fiji.ffmpeg.AVCODEC.AVFrame;
+import fiji.ffmpeg.AVCODEC.AVPacket;
+
+/**
+ * Measures the overhead (in nanoseconds per call) of calling ffmpeg through
+ * the JNA interface proxies and through the direct-mapped bindings.
+ *
+ * The calls do next to no work: freeing an empty packet, and converting a
+ * 16x16 gray frame.
+ *
+ * Usage: CallOverheadBenchmark [iterations]
+ */
+public class CallOverheadBenchmark extends FFMPEG_IO_Test {
+	public static void main(String[] args) throws Exception {
+		new CallOverheadBenchmark().run(args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+	}
+
+	protected void run(int iterations) throws Exception {
+		unpackNar();
+		new IO();
+		AVPacket packet = FramePool.getPacket();
+		int size = 16;
+		AVFrame source = FramePool.getFrame(size, size, AVUTIL.PIX_FMT_GRAY8);
+		AVFrame target = FramePool.getFrame(size, size, AVUTIL.PIX_FMT_GRAY8);
+		Pointer context = FFMPEG.swScale.sws_getContext(size, size, AVUTIL.PIX_FMT_GRAY8,
+			size, size, AVUTIL.PIX_FMT_GRAY8, SWSCALE.SWS_FAST_BILINEAR, null, null, null);
+		if (!FFMPEG.directAVCodec || !FFMPEG.directSWScale)
+			System.err.println("Warning: the direct-mapped bindings are not available");
+
+		System.out.println("function\tproxy (ns)\tdirect (ns)");
+		for (int round = 0; round < 2; round++) {
+			// the first round warms up
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				FFMPEG.avCodec.av_free_packet(packet);
+			long proxy = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				FFMPEG.av_free_packet(packet);
+			long direct = System.nanoTime() - start;
+			if (round > 0)
+				print("av_free_packet", proxy, direct, iterations);
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				FFMPEG.swScale.sws_scale(context, source.data, source.linesize, 0, size,
+					target.data, target.linesize);
+			proxy = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				FFMPEG.sws_scale(context, source.data, source.linesize, 0, size,
+					target.data, target.linesize);
+			direct = System.nanoTime() - start;
+			if (round > 0)
+				print("sws_scale", proxy, direct, iterations);
+		}
+
+		FFMPEG.swScale.sws_freeContext(context);
+		FramePool.release(source);
+		FramePool.release(target);
+		FramePool.release(packet);
+	}
+
+	protected void print(String function, long proxy, long direct, int iterations) {
+		System.out.println(function + "\t" + (proxy / (double)iterations)
+			+ "\t" + (direct / (double)iterations));
+	}
+}
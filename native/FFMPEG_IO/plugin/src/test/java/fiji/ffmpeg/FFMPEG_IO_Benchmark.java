@@ -0,0 +1,70 @@
+package fiji.ffmpeg;
+
+import ij.ImagePlus;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Measures the decoding speed (in frames per second) for different numbers
+ * of libavcodec threads, and the speed of an encode round-trip with the
+ * default number of threads for a few encoders.
+ *
+ * Usage: FFMPEG_IO_Benchmark [movie]
+ *
+ * Without a movie, a synthetic one is written first.
+ */
+public class FFMPEG_IO_Benchmark extends FFMPEG_IO_Test {
+	public static void main(String[] args) throws Exception {
+		new FFMPEG_IO_Benchmark().run(args.length > 0 ? args[0] : null);
+	}
+
+	protected void run(String movie) throws Exception {
+		unpackNar();
+
+		String path = movie;
+		if (path == null) {
+			File tmp = File.createTempFile("ffmpeg-benchmark-", ".avi");
+			tmp.deleteOnExit();
+			new IO().writeMovie(generateStack(300), tmp.getPath(), frameRate, bitRate);
+			path = tmp.getPath();
+		}
+
+		// warm up
+		new IO().readMovie(path, false, 0, -1);
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		System.out.println("threads\tframes/s");
+		for (int threads = 1; ; threads = Math.min(2 * threads, processors)) {
+			IO io = new IO();
+			io.setThreadCount(threads);
+			long start = System.nanoTime();
+			ImagePlus image = io.readMovie(path, false, 0, -1);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(threads + "\t" + (image.getStackSize() / seconds));
+			if (threads == processors)
+				break;
+		}
+
+		// most mpegvideo encoders other than MPEG-1/2/4 cannot use threads
+		ImagePlus stack = generateStack(100);
+		System.out.println("codec\tencode frames/s\tdecode frames/s");
+		for (String codec : new String[] { "mpeg4", "mjpeg", "ljpeg", "h263p" }) {
+			if (FFMPEG.avCodec.avcodec_find_encoder_by_name(codec) == null)
+				continue;
+			File tmp = File.createTempFile("ffmpeg-benchmark-" + codec + "-", ".avi");
+			tmp.deleteOnExit();
+			Map<String, String> options = IO.getRateOptions(frameRate, bitRate);
+			options.put(MovieWriter.CODEC, codec);
+			IO io = new IO();
+			long start = System.nanoTime();
+			io.writeMovie(stack, tmp.getPath(), options);
+			double encode = (System.nanoTime() - start) / 1e9;
+			start = System.nanoTime();
+			ImagePlus image = io.readMovie(tmp.getPath(), false, 0, -1);
+			double decode = (System.nanoTime() - start) / 1e9;
+			System.out.println(codec + "\t" + (stack.getStackSize() / encode)
+				+ "\t" + (image.getStackSize() / decode));
+		}
+	}
+}
@@ -11,6 +11,7 @@
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Map;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 
@@ -36,6 +37,44 @@ public void testWriteAndRead() throws Exception {
 		assertTrue(maxDiff < 5);
 	}
 
+	@Test
+	public void testParallelImport() throws Exception {
+		unpackNar();
+
+		File tmp = File.createTempFile("ffmpeg-", ".avi");
+		tmp.deleteOnExit();
+		ImagePlus image = generateStack(60);
+
+		IO io = new IO();
+		io.writeMovie(image, tmp.getPath(), frameRate, bitRate);
+
+		ImagePlus sequential = io.readMovie(tmp.getPath(), false, 0, -1);
+		// the workers open and close their decoders at the same time
+		io.setImportThreads(4);
+		ImagePlus parallel = io.readMovie(tmp.getPath(), false, 0, -1);
+		assertEquals(sequential.getStackSize(), parallel.getStackSize());
+		assertEquals(0, getMaxDiff(sequential, parallel));
+	}
+
+	@Test
+	public void testEncodeWithoutThreadSupport() throws Exception {
+		unpackNar();
+
+		File tmp = File.createTempFile("ffmpeg-", ".avi");
+		tmp.deleteOnExit();
+		ImagePlus image = generateStack(10);
+
+		// MJPEG cannot be opened with more than one thread
+		IO io = new IO();
+		io.setThreadCount(Math.max(2, Runtime.getRuntime().availableProcessors()));
+		Map<String, String> options = IO.getRateOptions(frameRate, bitRate);
+		options.put(MovieWriter.CODEC, "mjpeg");
+		io.writeMovie(image, tmp.getPath(), options);
+
+		ImagePlus read = io.readMovie(tmp.getPath(), false, 0, -1);
+		assertEquals(image.getStackSize(), read.getStackSize());
+	}
+
 	protected void unpackNar() throws IOException {
 		String suffix = "/" + getClass().getName().replace('.', '/') + ".class";
 		String url = getClass().getResource(suffix).toString();
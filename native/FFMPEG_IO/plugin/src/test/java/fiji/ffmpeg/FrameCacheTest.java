@@ -0,0 +1,48 @@
+package fiji.ffmpeg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import org.junit.Test;
+
+public class FrameCacheTest {
+	@Test
+	public void testLRU() {
+		// room for three 10x10 8-bit frames
+		FrameCache cache = new FrameCache(300);
+		ImageProcessor[] frames = new ImageProcessor[5];
+		for (int i = 0; i < frames.length; i++)
+			frames[i] = new ByteProcessor(10, 10);
+
+		cache.put(1, frames[1]);
+		cache.put(2, frames[2]);
+		cache.put(3, frames[3]);
+		assertSame(frames[1], cache.get(1));
+		cache.put(4, frames[4]);
+
+		// 2 was the least recently used
+		assertNull(cache.get(2));
+		assertSame(frames[1], cache.get(1));
+		assertSame(frames[3], cache.get(3));
+		assertSame(frames[4], cache.get(4));
+		assertEquals(4, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getEvictions());
+		assertEquals(300, cache.getUsedBytes());
+
+		cache.setBudget(100);
+		assertEquals(1, cache.getFrameCount());
+		assertSame(frames[4], cache.get(4));
+	}
+
+	@Test
+	public void testTooLarge() {
+		FrameCache cache = new FrameCache(50);
+		cache.put(1, new ByteProcessor(10, 10));
+		assertEquals(0, cache.getFrameCount());
+		assertEquals(0, cache.getUsedBytes());
+	}
+}
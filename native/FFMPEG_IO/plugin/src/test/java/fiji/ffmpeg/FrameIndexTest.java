@@ -0,0 +1,111 @@
+package fiji.ffmpeg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.Test;
+
+public class FrameIndexTest {
+	/**
+	 * An I B B P B B P group of pictures, in decode order: I P B B P B B.
+	 */
+	protected FrameIndex createIndex(long fileSize, long lastModified) {
+		FrameIndex index = new FrameIndex(fileSize, lastModified, 0);
+		long[] pts = { 0, 3, 1, 2, 6, 4, 5, 7, 10, 8, 9 };
+		for (int i = 0; i < pts.length; i++)
+			index.add(pts[i], i - 1, 100 * i, i == 0 || i == 7);
+		index.finish();
+		return index;
+	}
+
+	@Test
+	public void testPresentationOrder() {
+		FrameIndex index = createIndex(0, 0);
+		assertEquals(11, index.getFrameCount());
+		for (int frame = 0; frame < index.getFrameCount(); frame++)
+			assertEquals(frame, index.getFrameKey(frame));
+		for (int frame = 0; frame < 7; frame++)
+			assertEquals(0, index.getSeekPoint(frame));
+		for (int frame = 7; frame < 11; frame++)
+			assertEquals(7, index.getSeekPoint(frame));
+		for (int frame = 0; frame < index.getFrameCount(); frame++)
+			assertEquals(frame == 0 || frame == 7, index.isSeekPoint(frame));
+	}
+
+	@Test
+	public void testOpenGOP() {
+		FrameIndex index = new FrameIndex(0, 0, 0);
+		// the B-frames after the second keyframe are displayed before it
+		long[] pts = { 0, 1, 4, 2, 3, 5 };
+		for (int i = 0; i < pts.length; i++)
+			index.add(pts[i], IO.AV_NOPTS_VALUE, i, i == 0 || i == 2);
+		index.finish();
+		assertEquals(0, index.getSeekPoint(2));
+		assertEquals(0, index.getSeekPoint(3));
+		assertEquals(2, index.getSeekPoint(4));
+		assertEquals(4, index.getSeekTimestamp(index.getSeekPoint(4)));
+	}
+
+	@Test
+	public void testSidecar() throws Exception {
+		File movie = File.createTempFile("frame-index-", ".avi");
+		movie.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(movie);
+		out.write(new byte[1234]);
+		out.close();
+		File cache = File.createTempFile("ffmpeg-cache-", "");
+		assertTrue(cache.delete());
+		System.setProperty("fiji.ffmpeg.cache", cache.getPath());
+		File sidecar = FrameIndex.getSidecarFile(movie, 0);
+		sidecar.deleteOnExit();
+		// the movie's directory is left alone
+		assertFalse(sidecar.getParentFile().equals(movie.getParentFile()));
+
+		assertNull(FrameIndex.load(movie, 0));
+		createIndex(movie.length(), movie.lastModified()).save(movie);
+		FrameIndex index = FrameIndex.load(movie, 0);
+		assertNotNull(index);
+		assertEquals(11, index.getFrameCount());
+		assertEquals(7, index.getSeekPoint(9));
+		assertEquals(600, index.getPosition(6));
+
+		// a modified movie invalidates the index
+		assertNull(FrameIndex.load(movie, 1));
+		movie.setLastModified(movie.lastModified() - 10000);
+		assertNull(FrameIndex.load(movie, 0));
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		File cache = File.createTempFile("ffmpeg-cache-", "");
+		assertTrue(cache.delete());
+		System.setProperty("fiji.ffmpeg.cache", cache.getPath());
+		File[] movies = new File[3], sidecars = new File[3];
+		long now = System.currentTimeMillis();
+		try {
+			for (int i = 0; i < movies.length; i++) {
+				movies[i] = File.createTempFile("frame-index-", ".avi");
+				movies[i].deleteOnExit();
+				sidecars[i] = FrameIndex.getSidecarFile(movies[i], 0);
+				sidecars[i].deleteOnExit();
+				createIndex(movies[i].length(), movies[i].lastModified()).save(movies[i]);
+				long size = sidecars[i].length();
+				// room for two indices
+				System.setProperty("fiji.ffmpeg.indexCacheSize", "" + (2 * size + size / 2));
+				sidecars[i].setLastModified(now - 100000 + 1000 * i);
+			}
+			// the oldest one was removed when the third was saved
+			assertFalse(sidecars[0].exists());
+			assertTrue(sidecars[1].exists());
+			assertTrue(sidecars[2].exists());
+		} finally {
+			System.clearProperty("fiji.ffmpeg.indexCacheSize");
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package fiji.ffmpeg;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.ImageStack;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class IntensityRangeTest {
+	protected ImageStack createStack(int sliceCount) {
+		ImageStack stack = new ImageStack(10, 10);
+		for (int slice = 0; slice < sliceCount; slice++) {
+			float[] pixels = new float[100];
+			for (int i = 0; i < pixels.length; i++)
+				pixels[i] = slice * 100 + i;
+			stack.addSlice("", pixels);
+		}
+		return stack;
+	}
+
+	@Test
+	public void testMinMax() throws Exception {
+		ImageStack stack = createStack(10);
+		((float[])stack.getPixels(4))[17] = Float.NaN;
+		double[] range = new IntensityRange(stack, 3).getMinMax();
+		assertEquals(0, range[0], 0);
+		assertEquals(999, range[1], 0);
+	}
+
+	@Test
+	public void testSaturated() throws Exception {
+		double[] range = new IntensityRange(createStack(10), 4).getRange(10);
+		// 50 of the 1000 values at either end are saturated
+		assertEquals(50, range[0], 0.1);
+		assertEquals(949, range[1], 0.1);
+	}
+
+	@Test
+	public void testShort() throws Exception {
+		ImageStack stack = new ImageStack(2, 1);
+		stack.addSlice("", new short[] { 1000, (short)60000 });
+		stack.addSlice("", new short[] { 10, 20 });
+		double[] range = new IntensityRange(stack, 2).getMinMax();
+		assertEquals(10, range[0], 0);
+		assertEquals(60000, range[1], 0);
+	}
+
+	@Test
+	public void testVirtual() throws Exception {
+		final List<Integer> read = new ArrayList<Integer>();
+		ImageStack stack = new ImageStack(2, 1) {
+			@Override
+			public boolean isVirtual() {
+				return true;
+			}
+
+			@Override
+			public Object getPixels(int slice) {
+				read.add(Integer.valueOf(slice));
+				return new float[] { slice, -slice };
+			}
+
+			@Override
+			public int getSize() {
+				return 5;
+			}
+		};
+		double[] range = new IntensityRange(stack, 4).getMinMax();
+		assertEquals(-5, range[0], 0);
+		assertEquals(5, range[1], 0);
+		// read once each, in order
+		assertEquals("[1, 2, 3, 4, 5]", read.toString());
+	}
+}
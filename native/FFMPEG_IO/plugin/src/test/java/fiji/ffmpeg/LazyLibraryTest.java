@@ -0,0 +1,51 @@
+package fiji.ffmpeg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+
+import org.junit.Test;
+
+import fiji.ffmpeg.AVLOG.AvLog;
+
+public class LazyLibraryTest {
+	protected static class Log implements AVLOG {
+		protected int calls;
+
+		@Override
+		public void avSetLogCallback(AvLog callback) {
+			calls++;
+		}
+	}
+
+	@Test
+	public void testResolveOnce() throws Exception {
+		final Log log = new Log();
+		final int[] loads = { 0 };
+		JNALibraryLoader loader = new JNALibraryLoader() {
+			@SuppressWarnings("unchecked")
+			@Override
+			protected<T> T loadLibrary(String name, int version, Class<T> libraryClass) {
+				loads[0]++;
+				return (T)log;
+			}
+		};
+		AVLOG saved = FFMPEG.avLog;
+		try {
+			new FFMPEG.LazyLibrary(loader, "avlog", 0, AVLOG.class, "avLog").setProxy();
+			assertTrue(Proxy.isProxyClass(FFMPEG.avLog.getClass()));
+			assertEquals(0, loads[0]);
+
+			FFMPEG.avLog.avSetLogCallback(null);
+			// the proxy was replaced by the library itself
+			assertSame(log, FFMPEG.avLog);
+			FFMPEG.avLog.avSetLogCallback(null);
+			assertEquals(1, loads[0]);
+			assertEquals(2, log.calls);
+		} finally {
+			FFMPEG.avLog = saved;
+		}
+	}
+}
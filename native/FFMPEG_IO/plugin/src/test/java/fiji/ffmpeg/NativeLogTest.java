@@ -0,0 +1,83 @@
+package fiji.ffmpeg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class NativeLogTest {
+	// drains only when the test says so, and keeps the time the test sets
+	protected static class TestLog extends NativeLog {
+		protected long now = 1000000;
+
+		@Override
+		protected void startDrainer() {}
+
+		@Override
+		protected long currentTimeMillis() {
+			return now;
+		}
+	}
+
+	@Test
+	public void testFull() throws Exception {
+		NativeLog log = new TestLog();
+		for (int i = 0; i < NativeLog.CAPACITY; i++)
+			assertTrue(log.offer("line " + i));
+		assertFalse(log.offer("one too many"));
+		File file = File.createTempFile("ffmpeg-log", ".txt");
+		file.deleteOnExit();
+		log.dropped.incrementAndGet();
+		log.setLogFile(file);
+		assertTrue(log.drain());
+		log.closeWriter();
+
+		List<String> lines = readLines(file);
+		assertEquals(NativeLog.CAPACITY + 1, lines.size());
+		assertEquals("line 0", lines.get(0));
+		assertEquals("(1 ffmpeg log lines dropped)", lines.get(NativeLog.CAPACITY));
+		// the buffer is usable again
+		assertTrue(log.offer("again"));
+	}
+
+	@Test
+	public void testRate() throws Exception {
+		TestLog log = new TestLog();
+		log.setMaxLinesPerSecond(2);
+		for (int i = 0; i < 5; i++)
+			log.callback(AVUTIL.AV_LOG_INFO, "info " + i);
+		// errors are never rate limited
+		log.callback(AVUTIL.AV_LOG_ERROR, "error");
+		assertEquals(3, log.getDroppedCount());
+		assertEquals(3, log.head.get());
+		assertEquals("info 0", log.lines.get(0));
+		assertEquals("info 1", log.lines.get(1));
+		assertEquals("error", log.lines.get(2));
+
+		// the next second has its own budget
+		log.now += 1000;
+		log.callback(AVUTIL.AV_LOG_INFO, "next");
+		assertEquals(3, log.getDroppedCount());
+		assertEquals("next", log.lines.get(3));
+	}
+
+	protected List<String> readLines(File file) throws Exception {
+		List<String> result = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		for (;;) {
+			String line = reader.readLine();
+			if (line == null)
+				break;
+			result.add(line);
+		}
+		reader.close();
+		return result;
+	}
+}
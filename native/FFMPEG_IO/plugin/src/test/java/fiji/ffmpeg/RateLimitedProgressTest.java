@@ -0,0 +1,55 @@
+package fiji.ffmpeg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RateLimitedProgressTest {
+	protected static class Recorder implements ThroughputProgress {
+		protected List<Throughput> steps = new ArrayList<Throughput>();
+		protected int plainSteps;
+
+		@Override
+		public void start(String message) {}
+
+		@Override
+		public void step(String message, double progress) {
+			plainSteps++;
+		}
+
+		@Override
+		public void step(String message, double progress, Throughput throughput) {
+			steps.add(throughput);
+		}
+
+		@Override
+		public void done(String message) {}
+
+		@Override
+		public void log(String message) {}
+	}
+
+	@Test
+	public void testRateLimit() {
+		Recorder recorder = new Recorder();
+		// one update per second at most
+		RateLimitedProgress progress = new RateLimitedProgress(recorder, 1);
+		progress.start("test");
+		for (int i = 0; i < 1000; i++)
+			progress.step(null, i / 1000.0, i, 1000, i * 100l);
+		progress.step("with a message", 0.5);
+		progress.step(null, 1, 1000, 1000, 100000);
+
+		assertTrue(recorder.steps.size() <= 3);
+		assertEquals(1, recorder.plainSteps);
+		Throughput last = recorder.steps.get(recorder.steps.size() - 1);
+		assertEquals(1000, last.framesDone);
+		assertEquals(1000, last.framesTotal);
+		assertEquals(100000, last.bytes);
+		assertEquals(0, last.remaining, 0);
+	}
+}
@@ -0,0 +1,68 @@
+package fiji.ffmpeg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class StageMetricsTest {
+	@Test
+	public void testRecord() {
+		StageMetrics metrics = new StageMetrics();
+		long now = System.nanoTime();
+		metrics.record(StageMetrics.DECODE, now - 1000000);
+		metrics.record(StageMetrics.DECODE, now - 3000000);
+		metrics.record(StageMetrics.PACK, now);
+
+		assertEquals(2, metrics.getCount(StageMetrics.DECODE));
+		assertEquals(1, metrics.getCount(StageMetrics.PACK));
+		assertEquals(0, metrics.getCount(StageMetrics.ENCODE));
+		assertTrue(metrics.getTotal(StageMetrics.DECODE) >= 4000000);
+		assertTrue(metrics.getMaximum(StageMetrics.DECODE) >= 3000000);
+
+		long sum = 0;
+		for (long count : metrics.getHistogram(StageMetrics.DECODE))
+			sum += count;
+		assertEquals(2, sum);
+		// the upper bounds of the buckets
+		assertTrue(metrics.getPercentile(StageMetrics.DECODE, 50) > 1000000);
+		assertTrue(metrics.getPercentile(StageMetrics.DECODE, 100) > 3000000);
+		assertTrue(metrics.toString().contains("\ndecode\t2\t"));
+
+		metrics.reset();
+		assertEquals(0, metrics.getCount(StageMetrics.DECODE));
+		assertEquals(0, metrics.getPercentile(StageMetrics.DECODE, 50));
+	}
+
+	@Test
+	public void testBucket() {
+		assertEquals(0, StageMetrics.bucket(0));
+		assertEquals(1, StageMetrics.bucket(1));
+		assertEquals(2, StageMetrics.bucket(3));
+		assertEquals(3, StageMetrics.bucket(4));
+		assertEquals(63, StageMetrics.bucket(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testFlightRecorder() throws Exception {
+		StageMetrics metrics = new StageMetrics();
+		if (!metrics.setFlightRecorder(true))
+			return; // no Flight Recorder on this Java
+		Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+		Object recording = recordingClass.newInstance();
+		recordingClass.getMethod("start").invoke(recording);
+		try {
+			long outer = metrics.start();
+			// a stage that fails, and is never recorded
+			metrics.start();
+			long inner = metrics.start();
+			assertEquals(3, StageMetrics.FlightRecorderEvents.getPendingCount());
+			metrics.record(StageMetrics.DECODE, inner);
+			metrics.record(StageMetrics.READ_FRAME, outer);
+			assertEquals(0, StageMetrics.FlightRecorderEvents.getPendingCount());
+			assertEquals(1, metrics.getCount(StageMetrics.READ_FRAME));
+		} finally {
+			recordingClass.getMethod("close").invoke(recording);
+		}
+	}
+}